@@ -0,0 +1,97 @@
+/*
+ * Copyright (C) 2015 End Point Corporation
+ * Copyright (C) 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.endpoint.lg.streetview.master;
+
+import com.endpoint.lg.support.evdev.InputEventCodes;
+
+import java.util.Map;
+
+/**
+ * Reads the axes used for Street View navigation straight out of a raw EV_ABS
+ * message, without building a navigator or an {@link
+ * com.endpoint.lg.support.evdev.InputAbsState}.
+ * 
+ * <p>
+ * An EV_ABS message maps axis codes, as decimal strings, to axis values.
+ * Missing axes read as zero, as they do in {@code InputAbsState}. Decoding
+ * allocates nothing: the keys are built once, and values are read through
+ * {@link Number}.
+ * 
+ * <p>
+ * Not thread safe; only used by the thread that owns the model.
+ */
+public class AbsAxisDecoder {
+  private static final String KEY_RZ = String.valueOf(InputEventCodes.ABS_RZ);
+  private static final String KEY_Y = String.valueOf(InputEventCodes.ABS_Y);
+  private static final String KEY_RX = String.valueOf(InputEventCodes.ABS_RX);
+
+  private int rz;
+  private int y;
+  private int rx;
+
+  /**
+   * Decode a message into this decoder's fields.
+   * 
+   * @param message
+   *          the raw EV_ABS message
+   * @return false if the message has none of the navigation axes but isn't
+   *         empty, in which case it should be decoded the slow way
+   */
+  public boolean decode(Map<String, Object> message) {
+    Object vrz = message.get(KEY_RZ);
+    Object vy = message.get(KEY_Y);
+    Object vrx = message.get(KEY_RX);
+
+    if (vrz == null && vy == null && vrx == null && !message.isEmpty())
+      return false;
+
+    rz = intValue(vrz);
+    y = intValue(vy);
+    rx = intValue(vrx);
+
+    return true;
+  }
+
+  private static int intValue(Object value) {
+    if (value instanceof Number)
+      return ((Number) value).intValue();
+
+    return 0;
+  }
+
+  /**
+   * @return the ABS_RZ (twist) value
+   */
+  public int getRz() {
+    return rz;
+  }
+
+  /**
+   * @return the ABS_Y (push) value
+   */
+  public int getY() {
+    return y;
+  }
+
+  /**
+   * @return the ABS_RX (tilt) value
+   */
+  public int getRx() {
+    return rx;
+  }
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright (C) 2015 End Point Corporation
+ * Copyright (C) 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.endpoint.lg.streetview.master;
+
+/**
+ * Turns EV_ABS axis values into heading changes and movement between panos.
+ * 
+ * <p>
+ * Movement works as a counter: each update pushing forward or backward moves
+ * it up or down, an update pushing neither resets it, and once it passes
+ * {@link StreetviewMasterActivity#INPUT_MOVEMENT_COUNT} either way the model
+ * moves, unless a move happened within the cooldown.
+ * 
+ * <p>
+ * Shared by the activity and the benchmark. Not thread safe; only used by the
+ * thread that owns the model.
+ */
+class AbsNavigator {
+  private final StreetviewModel model;
+
+  private long lastMoveTime;
+  private int movementCounter;
+
+  /**
+   * @param model
+   *          the model to turn and move
+   */
+  AbsNavigator(StreetviewModel model) {
+    this.model = model;
+  }
+
+  /**
+   * @return heading change for an ABS_RZ value, in degrees
+   */
+  static double yawOf(int rz) {
+    return rz * StreetviewMasterActivity.INPUT_SENSITIVITY;
+  }
+
+  /**
+   * Movement can be either forwards or backwards, depending on whether the
+   * SpaceNav is moved+tilted forwards or backwards.
+   * 
+   * @return 1 for a forward push, -1 for a backward push, 0 for neither
+   */
+  static int directionOf(int y, int rx) {
+    // TODO: Movement in all directions.
+    double movement = -StreetviewMasterActivity.INPUT_SENSITIVITY * (y + rx);
+
+    if (movement > StreetviewMasterActivity.INPUT_MOVEMENT_THRESHOLD)
+      return 1;
+    if (movement < -StreetviewMasterActivity.INPUT_MOVEMENT_THRESHOLD)
+      return -1;
+
+    return 0;
+  }
+
+  /**
+   * Reset movement after a pano change, starting the cooldown.
+   * 
+   * @param now
+   *          current time, in milliseconds
+   */
+  void reset(long now) {
+    lastMoveTime = now;
+    movementCounter = 0;
+  }
+
+  /**
+   * @return the movement counter
+   */
+  int getMovementCounter() {
+    return movementCounter;
+  }
+
+  /**
+   * @return the movement counter after one more update pushing in a direction
+   */
+  int push(int direction) {
+    return direction == 0 ? 0 : movementCounter + direction;
+  }
+
+  /**
+   * Turn the point of view.
+   * 
+   * @param yaw
+   *          heading change, in degrees
+   * @return true if the point of view changed
+   */
+  boolean turn(double yaw) {
+    if (yaw == 0)
+      return false;
+
+    model.translatePov(yaw, 0);
+    return true;
+  }
+
+  /**
+   * Set the movement counter, and move if it was pushed far enough. The
+   * caller resets movement once the move is broadcast.
+   * 
+   * @param counter
+   *          the new movement counter value
+   * @param now
+   *          current time, in milliseconds
+   * @return true if the pano changed
+   */
+  boolean move(int counter, long now) {
+    movementCounter = counter;
+
+    if ((now - lastMoveTime) < StreetviewMasterActivity.INPUT_MOVEMENT_COOLDOWN) {
+      movementCounter = 0;
+      return false;
+    }
+
+    if (movementCounter > StreetviewMasterActivity.INPUT_MOVEMENT_COUNT)
+      return model.moveForward();
+    if (movementCounter < -StreetviewMasterActivity.INPUT_MOVEMENT_COUNT)
+      return model.moveBackward();
+
+    return false;
+  }
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright (C) 2015 End Point Corporation
+ * Copyright (C) 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.endpoint.lg.streetview.master;
+
+import java.util.Arrays;
+
+/**
+ * Folds a burst of EV_ABS updates into one effective update.
+ * 
+ * <p>
+ * Yaw is summed so no rotation is lost, and the point of view is turned once
+ * per burst. Movement can't be summed the same way: the movement counter is
+ * checked against the threshold and the cooldown after every update, so a
+ * burst that pushes past the threshold and then lets go moves once per update
+ * but would net out to no move at all. Each update's direction and time are
+ * kept instead and replayed through the {@link AbsNavigator}, which makes the
+ * same moves per-event handling would, except that they use the heading at
+ * the end of the burst.
+ * 
+ * <p>
+ * Not thread safe; only used on the event loop thread.
+ */
+public class AbsStateCoalescer {
+  private double yaw;
+  private int[] directions = new int[16];
+  private long[] times = new long[16];
+  private int pending;
+
+  private long coalescedCount;
+
+  /**
+   * Fold in one axis update.
+   * 
+   * @param yaw
+   *          heading change, in degrees
+   * @param direction
+   *          1 for forward push, -1 for backward push, 0 for neither
+   * @param now
+   *          time of the update, in milliseconds
+   */
+  public void add(double yaw, int direction, long now) {
+    this.yaw += yaw;
+
+    if (pending == directions.length) {
+      directions = Arrays.copyOf(directions, pending * 2);
+      times = Arrays.copyOf(times, pending * 2);
+    }
+
+    directions[pending] = direction;
+    times[pending] = now;
+    pending++;
+  }
+
+  /**
+   * @return true if any updates have been folded in since the last clear
+   */
+  public boolean hasPending() {
+    return pending > 0;
+  }
+
+  /**
+   * @return total heading change, in degrees
+   */
+  public double getYaw() {
+    return yaw;
+  }
+
+  /**
+   * Push the movement counter once per folded update, checking the threshold
+   * and cooldown at each, and reset movement after every move so the cooldown
+   * covers the rest of the burst.
+   * 
+   * @param navigator
+   *          the navigator to move
+   * @return true if the pano changed
+   */
+  boolean applyMovement(AbsNavigator navigator) {
+    boolean moved = false;
+
+    for (int i = 0; i < pending; i++) {
+      if (navigator.move(navigator.push(directions[i]), times[i])) {
+        navigator.reset(times[i]);
+        moved = true;
+      }
+    }
+
+    return moved;
+  }
+
+  /**
+   * Forget the pending update after it has been applied.
+   */
+  public void clear() {
+    if (pending > 1)
+      coalescedCount += pending - 1;
+
+    yaw = 0;
+    pending = 0;
+  }
+
+  /**
+   * @return number of updates that were folded into another update
+   */
+  public long getCoalescedCount() {
+    return coalescedCount;
+  }
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright (C) 2015 End Point Corporation
+ * Copyright (C) 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.endpoint.lg.streetview.master;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures heading velocity from a stream of yaw changes.
+ * 
+ * <p>
+ * Yaw is summed between samples, and each sample divides the sum by the time
+ * since the previous sample.
+ * 
+ * <p>
+ * Not thread safe; only used by the thread that owns the model.
+ */
+public class AngularVelocityTracker {
+  private static final double NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+
+  private double yaw;
+  private long lastSampleNanos;
+
+  /**
+   * @param nowNanos
+   *          the current {@link System#nanoTime()}
+   */
+  public AngularVelocityTracker(long nowNanos) {
+    lastSampleNanos = nowNanos;
+  }
+
+  /**
+   * Add a heading change.
+   * 
+   * @param yaw
+   *          the change, in degrees
+   */
+  public void addYaw(double yaw) {
+    this.yaw += yaw;
+  }
+
+  /**
+   * Measure the velocity since the last sample, and start a new one.
+   * 
+   * @param nowNanos
+   *          the current {@link System#nanoTime()}
+   * @return velocity, in degrees per second
+   */
+  public double sample(long nowNanos) {
+    long elapsed = nowNanos - lastSampleNanos;
+
+    if (elapsed <= 0)
+      return 0;
+
+    double velocity = yaw * NANOS_PER_SECOND / elapsed;
+
+    yaw = 0;
+    lastSampleNanos = nowNanos;
+
+    return velocity;
+  }
+}
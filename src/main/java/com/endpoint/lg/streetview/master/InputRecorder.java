@@ -0,0 +1,158 @@
+/*
+ * Copyright (C) 2015 End Point Corporation
+ * Copyright (C) 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.endpoint.lg.streetview.master;
+
+import interactivespaces.util.data.json.JsonMapper;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Records input messages to a compact binary log, for replay with
+ * {@link InputReplayer}.
+ * 
+ * <p>
+ * The log starts with {@link #MAGIC} and {@link #VERSION}. Each channel name
+ * is written once, in a {@link #RECORD_CHANNEL} record assigning it a number.
+ * Each message is a {@link #RECORD_MESSAGE} record: the channel number, the
+ * time since the previous message in nanoseconds as a variable-length number,
+ * and the length and UTF-8 bytes of the message JSON.
+ * 
+ * <p>
+ * Safe to call from any number of input threads.
+ */
+public class InputRecorder {
+
+  /**
+   * Identifies an input log.
+   */
+  public static final int MAGIC = 0x53564C47; // "SVLG"
+
+  /**
+   * Current log format version.
+   */
+  public static final int VERSION = 1;
+
+  /**
+   * Record type assigning a number to a channel name.
+   */
+  public static final byte RECORD_CHANNEL = 1;
+
+  /**
+   * Record type of a message.
+   */
+  public static final byte RECORD_MESSAGE = 2;
+
+  static final Charset UTF8 = Charset.forName("UTF-8");
+
+  private final DataOutputStream out;
+  private final Map<String, Integer> channels = new HashMap<String, Integer>();
+  private long lastNanos;
+  private long messages;
+
+  /**
+   * Start a new log, replacing any existing file.
+   * 
+   * @param file
+   *          the log file
+   * @throws IOException
+   *           if the file can't be created
+   */
+  public InputRecorder(File file) throws IOException {
+    out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+    out.writeInt(MAGIC);
+    out.writeInt(VERSION);
+    lastNanos = System.nanoTime();
+  }
+
+  /**
+   * Record a message.
+   * 
+   * @param channel
+   *          the input channel
+   * @param nanos
+   *          {@link System#nanoTime()} when the message arrived
+   * @param message
+   *          the message
+   * @throws IOException
+   *           if the write fails
+   */
+  public void record(String channel, long nanos, Map<String, Object> message) throws IOException {
+    // serialize outside the lock
+    byte[] payload = JsonMapper.INSTANCE.toString(message).getBytes(UTF8);
+
+    synchronized (this) {
+      Integer id = channels.get(channel);
+
+      if (id == null) {
+        id = channels.size();
+        channels.put(channel, id);
+
+        out.writeByte(RECORD_CHANNEL);
+        writeVarLong(out, id);
+        out.writeUTF(channel);
+      }
+
+      // concurrent callers may arrive slightly out of order
+      long delta = Math.max(0, nanos - lastNanos);
+      lastNanos = Math.max(lastNanos, nanos);
+
+      out.writeByte(RECORD_MESSAGE);
+      writeVarLong(out, id);
+      writeVarLong(out, delta);
+      writeVarLong(out, payload.length);
+      out.write(payload);
+
+      messages++;
+    }
+  }
+
+  /**
+   * @return number of messages recorded
+   */
+  public synchronized long getMessageCount() {
+    return messages;
+  }
+
+  /**
+   * Flush and close the log.
+   * 
+   * @throws IOException
+   *           if the final write fails
+   */
+  public synchronized void close() throws IOException {
+    out.close();
+  }
+
+  /**
+   * Write an unsigned number in 7-bit groups, low group first.
+   */
+  static void writeVarLong(DataOutputStream out, long value) throws IOException {
+    while ((value & ~0x7FL) != 0) {
+      out.writeByte((int) ((value & 0x7F) | 0x80));
+      value >>>= 7;
+    }
+    out.writeByte((int) value);
+  }
+}
@@ -0,0 +1,169 @@
+/*
+ * Copyright (C) 2015 End Point Corporation
+ * Copyright (C) 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.endpoint.lg.streetview.master;
+
+import interactivespaces.util.data.json.JsonMapper;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Feeds a log written by {@link InputRecorder} back into a message sink,
+ * either with the original timing or as fast as possible.
+ */
+public class InputReplayer {
+
+  /**
+   * Receives replayed messages.
+   */
+  public interface Sink {
+    /**
+     * @param channel
+     *          the input channel
+     * @param message
+     *          the message
+     */
+    void onMessage(String channel, Map<String, Object> message);
+  }
+
+  private final File file;
+
+  private long messages;
+  private long elapsedNanos;
+
+  /**
+   * @param file
+   *          the log file
+   */
+  public InputReplayer(File file) {
+    this.file = file;
+  }
+
+  /**
+   * Replay the whole log.
+   * 
+   * @param sink
+   *          receives each message
+   * @param realTime
+   *          true to keep the recorded gaps between messages, false to replay
+   *          as fast as possible
+   * @throws IOException
+   *           if the log can't be read
+   * @throws InterruptedException
+   *           if interrupted while waiting for the next message
+   */
+  public void replay(Sink sink, boolean realTime) throws IOException, InterruptedException {
+    DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+    List<String> channels = new ArrayList<String>();
+
+    messages = 0;
+    long start = System.nanoTime();
+    long due = start;
+
+    try {
+      if (in.readInt() != InputRecorder.MAGIC || in.readInt() != InputRecorder.VERSION)
+        throw new IOException("Not a version " + InputRecorder.VERSION + " input log: " + file);
+
+      while (true) {
+        byte type;
+
+        try {
+          type = in.readByte();
+        } catch (EOFException e) {
+          break;
+        }
+
+        if (type == InputRecorder.RECORD_CHANNEL) {
+          int id = (int) readVarLong(in);
+          String name = in.readUTF();
+
+          while (channels.size() <= id) {
+            channels.add(null);
+          }
+          channels.set(id, name);
+        } else if (type == InputRecorder.RECORD_MESSAGE) {
+          String channel = channels.get((int) readVarLong(in));
+          long delta = readVarLong(in);
+          byte[] payload = new byte[(int) readVarLong(in)];
+          in.readFully(payload);
+
+          if (realTime) {
+            due += delta;
+            long wait = due - System.nanoTime();
+            if (wait > 0)
+              TimeUnit.NANOSECONDS.sleep(wait);
+          }
+
+          sink.onMessage(channel,
+              JsonMapper.INSTANCE.parseObject(new String(payload, InputRecorder.UTF8)));
+          messages++;
+        } else {
+          throw new IOException("Unknown record type " + type + " in " + file);
+        }
+      }
+    } catch (EOFException e) {
+      // torn final record from an unclean shutdown
+    } finally {
+      in.close();
+      elapsedNanos = System.nanoTime() - start;
+    }
+  }
+
+  /**
+   * @return number of messages in the last replay
+   */
+  public long getMessageCount() {
+    return messages;
+  }
+
+  /**
+   * @return duration of the last replay, in nanoseconds
+   */
+  public long getElapsedNanos() {
+    return elapsedNanos;
+  }
+
+  /**
+   * @return messages per second in the last replay
+   */
+  public double getThroughput() {
+    return elapsedNanos == 0 ? 0 : messages * (double) TimeUnit.SECONDS.toNanos(1) / elapsedNanos;
+  }
+
+  private static long readVarLong(DataInputStream in) throws IOException {
+    long value = 0;
+
+    for (int shift = 0; shift < 64; shift += 7) {
+      int b = in.readUnsignedByte();
+      value |= (long) (b & 0x7F) << shift;
+
+      if ((b & 0x80) == 0)
+        return value;
+    }
+
+    throw new IOException("Malformed number in input log");
+  }
+}
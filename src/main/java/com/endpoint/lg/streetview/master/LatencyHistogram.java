@@ -0,0 +1,139 @@
+/*
+ * Copyright (C) 2015 End Point Corporation
+ * Copyright (C) 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.endpoint.lg.streetview.master;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A fixed-size log-linear histogram of durations in nanoseconds.
+ *
+ * <p>
+ * Each power of two is split into {@link #SUB_BUCKETS} linear buckets, so any
+ * recorded value is reported to within 1/{@value #SUB_BUCKETS} of itself.
+ * Recording is a shift, a mask and an atomic increment; the histogram never
+ * allocates after construction, and the work of summing buckets is left to
+ * readers.
+ *
+ * <p>
+ * Safe for concurrent recording and reading. A snapshot taken while values
+ * are recorded may be off by those values.
+ */
+public class LatencyHistogram {
+
+  /**
+   * Linear buckets per power of two.
+   */
+  public static final int SUB_BUCKETS = 16;
+
+  private static final int SUB_BITS = 4;
+
+  private static final int BUCKETS = 64 * SUB_BUCKETS;
+
+  private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+  private final AtomicLong max = new AtomicLong();
+
+  /**
+   * Record a duration.
+   *
+   * @param nanos
+   *          the duration, negative values count as zero
+   */
+  public void record(long nanos) {
+    if (nanos < 0)
+      nanos = 0;
+
+    counts.incrementAndGet(bucketOf(nanos));
+
+    long m;
+    while (nanos > (m = max.get())) {
+      if (max.compareAndSet(m, nanos))
+        break;
+    }
+  }
+
+  /**
+   * @return number of durations recorded
+   */
+  public long getCount() {
+    long n = 0;
+
+    for (int i = 0; i < BUCKETS; i++) {
+      n += counts.get(i);
+    }
+
+    return n;
+  }
+
+  /**
+   * @return longest duration recorded, in nanoseconds
+   */
+  public long getMax() {
+    return max.get();
+  }
+
+  /**
+   * Find the duration below which a fraction of the recorded durations fall.
+   *
+   * @param fraction
+   *          between 0 and 1, such as 0.99
+   * @return the upper bound of the bucket holding that percentile, in
+   *         nanoseconds, or 0 if nothing was recorded
+   */
+  public long getPercentile(double fraction) {
+    long n = getCount();
+
+    if (n == 0)
+      return 0;
+
+    long rank = (long) Math.ceil(fraction * n);
+    if (rank < 1)
+      rank = 1;
+
+    long seen = 0;
+
+    for (int i = 0; i < BUCKETS; i++) {
+      seen += counts.get(i);
+
+      if (seen >= rank)
+        return Math.min(upperBoundOf(i), max.get());
+    }
+
+    return max.get();
+  }
+
+  private static int bucketOf(long nanos) {
+    if (nanos < SUB_BUCKETS)
+      return (int) nanos;
+
+    int shift = 63 - Long.numberOfLeadingZeros(nanos) - SUB_BITS;
+    int sub = (int) (nanos >>> shift) & (SUB_BUCKETS - 1);
+
+    return (shift + 1) * SUB_BUCKETS + sub;
+  }
+
+  private static long upperBoundOf(int bucket) {
+    if (bucket < SUB_BUCKETS)
+      return bucket;
+
+    int shift = bucket / SUB_BUCKETS - 1;
+    long sub = bucket % SUB_BUCKETS;
+
+    return ((SUB_BUCKETS + sub + 1) << shift) - 1;
+  }
+}
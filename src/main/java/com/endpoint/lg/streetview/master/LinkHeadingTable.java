@@ -0,0 +1,160 @@
+/*
+ * Copyright (C) 2015 End Point Corporation
+ * Copyright (C) 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.endpoint.lg.streetview.master;
+
+import com.endpoint.lg.support.domain.streetview.StreetviewLink;
+import com.endpoint.lg.support.domain.streetview.StreetviewLinks;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Links sorted by heading, for allocation-free nearest link lookups.
+ * 
+ * <p>
+ * Headings are normalized to [0, 360). A lookup binary searches the sorted
+ * headings and compares the two neighbours of the insertion point, wrapping
+ * around north.
+ */
+public class LinkHeadingTable {
+
+  /**
+   * A table with no links.
+   */
+  public static final LinkHeadingTable EMPTY = new LinkHeadingTable(new double[0], new String[0]);
+
+  private final double[] headings;
+  private final String[] panos;
+
+  private LinkHeadingTable(double[] headings, String[] panos) {
+    this.headings = headings;
+    this.panos = panos;
+  }
+
+  /**
+   * Build a table from a set of links.
+   * 
+   * @param links
+   *          the links
+   * @return the table
+   */
+  public static LinkHeadingTable fromLinks(StreetviewLinks links) {
+    List<StreetviewLink> list = new ArrayList<StreetviewLink>();
+    for (StreetviewLink link : links.getLinks()) {
+      list.add(link);
+    }
+
+    int n = list.size();
+    double[] headings = new double[n];
+    String[] panos = new String[n];
+
+    for (int i = 0; i < n; i++) {
+      headings[i] = list.get(i).getHeading();
+      panos[i] = list.get(i).getPano();
+    }
+
+    return fromArrays(headings, panos);
+  }
+
+  /**
+   * Build a table from parallel arrays of headings and panoids.
+   * 
+   * @param headings
+   *          link headings, in degrees; normalized and sorted in place
+   * @param panos
+   *          link panoids; sorted in place
+   * @return the table
+   */
+  public static LinkHeadingTable fromArrays(double[] headings, String[] panos) {
+    int n = headings.length;
+
+    // insertion sort; there are only ever a handful of links
+    for (int i = 0; i < n; i++) {
+      double heading = normalize(headings[i]);
+      String pano = panos[i];
+
+      int j = i - 1;
+      while (j >= 0 && headings[j] > heading) {
+        headings[j + 1] = headings[j];
+        panos[j + 1] = panos[j];
+        j--;
+      }
+
+      headings[j + 1] = heading;
+      panos[j + 1] = pano;
+    }
+
+    return new LinkHeadingTable(headings, panos);
+  }
+
+  /**
+   * Find the link nearest a heading.
+   * 
+   * @param heading
+   *          the heading, in degrees
+   * @return the panoid of the nearest link, or null if there are no links
+   */
+  public String nearest(double heading) {
+    int n = headings.length;
+
+    if (n == 0)
+      return null;
+
+    double h = normalize(heading);
+    int i = Arrays.binarySearch(headings, h);
+
+    if (i >= 0)
+      return panos[i];
+
+    int above = -i - 1;
+    int below = above - 1;
+
+    // wrap around north
+    if (above == n)
+      above = 0;
+    if (below < 0)
+      below = n - 1;
+
+    return distance(h, headings[below]) <= distance(h, headings[above]) ? panos[below]
+        : panos[above];
+  }
+
+  /**
+   * @return number of links
+   */
+  public int size() {
+    return headings.length;
+  }
+
+  /**
+   * @return the heading in [0, 360)
+   */
+  private static double normalize(double heading) {
+    double h = heading % 360;
+    return h < 0 ? h + 360 : h;
+  }
+
+  /**
+   * @return the angle between two normalized headings, in [0, 180]
+   */
+  private static double distance(double a, double b) {
+    double d = Math.abs(a - b);
+    return d > 180 ? 360 - d : d;
+  }
+}
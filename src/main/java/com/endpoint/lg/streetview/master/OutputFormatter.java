@@ -0,0 +1,134 @@
+/*
+ * Copyright (C) 2015 End Point Corporation
+ * Copyright (C) 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.endpoint.lg.streetview.master;
+
+import interactivespaces.util.data.json.JsonBuilder;
+
+import com.endpoint.lg.support.domain.streetview.StreetviewPano;
+import com.endpoint.lg.support.domain.streetview.StreetviewPov;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Builds outgoing pov, pano and state messages at the configured POV
+ * precision, tagged with this master's origin, a sequence number and the time.
+ * 
+ * <p>
+ * Messages are built afresh on every send. Interactive Spaces serializes the
+ * map handed to sendOutputJson itself, so there is no serialized form to
+ * reuse, and every send needs its own tags anyway.
+ * 
+ * <p>
+ * Shared by the activity and the benchmark. Thread safe.
+ */
+class OutputFormatter {
+  private final String origin;
+  private final double precisionScale;
+  private final AtomicLong sequence = new AtomicLong();
+
+  // wall clock and monotonic clock at construction, for monotonic timestamps
+  private final long clockBaseMillis;
+  private final long clockBaseNanos;
+
+  /**
+   * @param origin
+   *          identifies this master's messages
+   * @param povPrecision
+   *          decimal places kept in headings and pitches, or negative to keep
+   *          them all
+   */
+  OutputFormatter(String origin, int povPrecision) {
+    this.origin = origin;
+    precisionScale = povPrecision < 0 ? 0 : Math.pow(10, povPrecision);
+    clockBaseMillis = System.currentTimeMillis();
+    clockBaseNanos = System.nanoTime();
+  }
+
+  String getOrigin() {
+    return origin;
+  }
+
+  /**
+   * @return milliseconds since the epoch, as of construction, advanced by the
+   *         monotonic clock so it never goes backwards
+   */
+  long monotonicTimeMillis() {
+    return clockBaseMillis + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - clockBaseNanos);
+  }
+
+  /**
+   * Tag an outgoing message with the origin, the next sequence number and the
+   * current time.
+   * 
+   * @param json
+   *          the message being built
+   * @return the built message
+   */
+  Map<String, Object> tag(JsonBuilder json) {
+    json.put(StreetviewMasterActivity.MESSAGE_FIELD_ORIGIN, origin);
+    json.put(StreetviewMasterActivity.MESSAGE_FIELD_SEQUENCE, sequence.incrementAndGet());
+    json.put(StreetviewMasterActivity.MESSAGE_FIELD_TIME, monotonicTimeMillis());
+    return json.build();
+  }
+
+  /**
+   * Write heading and pitch into an outgoing message at the configured
+   * precision.
+   * 
+   * @param pov
+   *          the point of view
+   * @param json
+   *          the outgoing message
+   * @return the same message
+   */
+  JsonBuilder quantize(StreetviewPov pov, JsonBuilder json) {
+    double heading = pov.getHeading(), pitch = pov.getPitch();
+
+    if (precisionScale > 0) {
+      heading = Math.round(heading * precisionScale) / precisionScale;
+      pitch = Math.round(pitch * precisionScale) / precisionScale;
+    }
+
+    json.put("heading", heading);
+    json.put("pitch", pitch);
+    return json;
+  }
+
+  /**
+   * @return a tagged pov message
+   */
+  Map<String, Object> povMessage(StreetviewPov pov) {
+    return tag(quantize(pov, pov.getJsonBuilder()));
+  }
+
+  /**
+   * @return a tagged pano message
+   */
+  Map<String, Object> panoMessage(StreetviewPano pano) {
+    return tag(pano.getJsonBuilder());
+  }
+
+  /**
+   * @return a tagged combined pano and pov message
+   */
+  Map<String, Object> stateMessage(StreetviewPano pano, StreetviewPov pov) {
+    return tag(quantize(pov, pano.getJsonBuilder()));
+  }
+}
@@ -0,0 +1,525 @@
+/*
+ * Copyright (C) 2015 End Point Corporation
+ * Copyright (C) 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.endpoint.lg.streetview.master;
+
+import com.endpoint.lg.support.domain.streetview.StreetviewLink;
+import com.endpoint.lg.support.domain.streetview.StreetviewLinks;
+
+import java.util.Arrays;
+
+/**
+ * A directed graph of panoramas, accumulated from every links update seen.
+ *
+ * <p>
+ * Panoids are interned to int node ids through an open addressing table, and
+ * edges are kept in parallel primitive arrays as per-node linked lists. Apart
+ * from the panoid strings themselves, the graph holds no per-node or per-edge
+ * objects, so it stays compact with hundreds of thousands of panos.
+ *
+ * <p>
+ * Each links update replaces the edges out of its pano rather than adding to
+ * them, so a misattributed update only lasts until the pano's real links
+ * arrive. Edge slots freed by a replacement are reused.
+ *
+ * <p>
+ * The graph stops growing once it holds its maximum number of nodes; edges
+ * between known nodes are still recorded.
+ *
+ * <p>
+ * Not thread safe; owned by the model.
+ */
+public class PanoGraph {
+
+  /**
+   * Notified when a links update replaces the edges out of a pano.
+   */
+  public interface EdgeListener {
+    /**
+     * All edges out of a pano were removed, ahead of its new edges.
+     *
+     * @param from
+     *          source panoid
+     */
+    void onEdgesCleared(String from);
+
+    /**
+     * An edge was added by a links update.
+     *
+     * @param from
+     *          source panoid
+     * @param to
+     *          target panoid
+     * @param heading
+     *          heading from source to target, in degrees
+     */
+    void onEdgeAdded(String from, String to, float heading);
+  }
+
+  /**
+   * Marks the end of an edge list, or a missing node.
+   */
+  public static final int NONE = -1;
+
+  private static final int INITIAL_NODES = 1024;
+
+  private final int maxNodes;
+
+  // interning table: node id + 1 per slot, 0 for empty
+  private int[] slots;
+
+  // per node
+  private String[] panoids;
+  private int[] firstEdge;
+  private int nodeCount;
+
+  // per edge
+  private int[] edgeTarget;
+  private float[] edgeHeading;
+  private int[] nextEdge;
+  private int edgeCount;
+
+  // edge slots ever used, and a list of freed ones through nextEdge
+  private int edgeEnd;
+  private int freeEdge = NONE;
+
+  // path search scratch space, reused between searches
+  private int[] searchParent = new int[0];
+  private int[] searchQueue = new int[0];
+
+  private EdgeListener edgeListener;
+
+  /**
+   * @param maxNodes
+   *          most panos to hold
+   */
+  public PanoGraph(int maxNodes) {
+    this.maxNodes = maxNodes;
+
+    int nodes = Math.max(1, Math.min(INITIAL_NODES, maxNodes));
+
+    slots = new int[tableSizeFor(nodes)];
+    panoids = new String[nodes];
+    firstEdge = new int[nodes];
+    edgeTarget = new int[nodes * 4];
+    edgeHeading = new float[nodes * 4];
+    nextEdge = new int[nodes * 4];
+  }
+
+  /**
+   * Replace the edges out of a pano with its links.
+   *
+   * @param panoid
+   *          the pano the links belong to
+   * @param links
+   *          the links
+   * @return true if the pano's edges changed
+   */
+  public boolean setLinks(String panoid, StreetviewLinks links) {
+    int from = intern(panoid);
+
+    if (from == NONE || sameEdges(from, links))
+      return false;
+
+    clearEdges(from);
+
+    if (edgeListener != null)
+      edgeListener.onEdgesCleared(panoid);
+
+    for (StreetviewLink link : links.getLinks()) {
+      int to = intern(link.getPano());
+      float heading = (float) link.getHeading();
+
+      if (to == NONE)
+        continue;
+
+      addEdge(from, to, heading);
+
+      if (edgeListener != null)
+        edgeListener.onEdgeAdded(panoid, link.getPano(), heading);
+    }
+
+    return true;
+  }
+
+  /**
+   * @return true if the edges out of a node already match the links
+   */
+  private boolean sameEdges(int from, StreetviewLinks links) {
+    int n = 0;
+
+    for (StreetviewLink link : links.getLinks()) {
+      int to = intern(link.getPano());
+
+      if (to == NONE)
+        continue;
+
+      int e = getEdge(from, to);
+      if (e == NONE || edgeHeading[e] != (float) link.getHeading())
+        return false;
+
+      n++;
+    }
+
+    return n == getNeighbourCount(from);
+  }
+
+  /**
+   * Remove every edge out of a node.
+   *
+   * @param node
+   *          source node id
+   */
+  public void clearEdges(int node) {
+    int e = firstEdge[node];
+
+    while (e != NONE) {
+      int next = nextEdge[e];
+      nextEdge[e] = freeEdge;
+      freeEdge = e;
+      edgeCount--;
+      e = next;
+    }
+
+    firstEdge[node] = NONE;
+  }
+
+  /**
+   * Record an edge, or update the heading of an existing one.
+   *
+   * @param from
+   *          source node id
+   * @param to
+   *          target node id
+   * @param heading
+   *          heading from source to target, in degrees
+   * @return true if the edge is new
+   */
+  public boolean addEdge(int from, int to, float heading) {
+    for (int e = firstEdge[from]; e != NONE; e = nextEdge[e]) {
+      if (edgeTarget[e] == to) {
+        edgeHeading[e] = heading;
+        return false;
+      }
+    }
+
+    int e;
+
+    if (freeEdge != NONE) {
+      e = freeEdge;
+      freeEdge = nextEdge[e];
+    } else {
+      if (edgeEnd == edgeTarget.length) {
+        int size = edgeEnd * 2;
+        edgeTarget = Arrays.copyOf(edgeTarget, size);
+        edgeHeading = Arrays.copyOf(edgeHeading, size);
+        nextEdge = Arrays.copyOf(nextEdge, size);
+      }
+
+      e = edgeEnd++;
+    }
+
+    edgeCount++;
+    edgeTarget[e] = to;
+    edgeHeading[e] = heading;
+    nextEdge[e] = firstEdge[from];
+    firstEdge[from] = e;
+
+    return true;
+  }
+
+  /**
+   * Find the node id of a pano, adding it if there is room.
+   *
+   * @param panoid
+   *          the panoid
+   * @return the node id, or {@link #NONE} if the graph is full
+   */
+  public int intern(String panoid) {
+    int mask = slots.length - 1;
+
+    for (int i = hash(panoid) & mask;; i = (i + 1) & mask) {
+      int slot = slots[i];
+
+      if (slot == 0) {
+        if (nodeCount >= maxNodes)
+          return NONE;
+
+        int id = nodeCount++;
+        ensureNodeCapacity();
+        panoids[id] = panoid;
+        firstEdge[id] = NONE;
+        slots[i] = id + 1;
+
+        // keep the table at most half full
+        if (nodeCount * 2 > slots.length)
+          rehash();
+
+        return id;
+      }
+
+      if (panoids[slot - 1].equals(panoid))
+        return slot - 1;
+    }
+  }
+
+  /**
+   * Find the node id of a pano.
+   *
+   * @param panoid
+   *          the panoid
+   * @return the node id, or {@link #NONE} if the pano isn't known
+   */
+  public int indexOf(String panoid) {
+    int mask = slots.length - 1;
+
+    for (int i = hash(panoid) & mask;; i = (i + 1) & mask) {
+      int slot = slots[i];
+
+      if (slot == 0)
+        return NONE;
+
+      if (panoids[slot - 1].equals(panoid))
+        return slot - 1;
+    }
+  }
+
+  /**
+   * @return the panoid of a node
+   */
+  public String getPanoid(int node) {
+    return panoids[node];
+  }
+
+  /**
+   * @return the first edge out of a node, or {@link #NONE}
+   */
+  public int getFirstEdge(int node) {
+    return firstEdge[node];
+  }
+
+  /**
+   * @return the edge after the given one out of the same node, or
+   *         {@link #NONE}
+   */
+  public int getNextEdge(int edge) {
+    return nextEdge[edge];
+  }
+
+  /**
+   * @return the target node of an edge
+   */
+  public int getEdgeTarget(int edge) {
+    return edgeTarget[edge];
+  }
+
+  /**
+   * @return the heading of an edge, in degrees
+   */
+  public float getEdgeHeading(int edge) {
+    return edgeHeading[edge];
+  }
+
+  /**
+   * Find the edge between two nodes.
+   *
+   * @param from
+   *          source node id
+   * @param to
+   *          target node id
+   * @return the edge, or {@link #NONE} if there is none
+   */
+  public int getEdge(int from, int to) {
+    for (int e = firstEdge[from]; e != NONE; e = nextEdge[e]) {
+      if (edgeTarget[e] == to)
+        return e;
+    }
+
+    return NONE;
+  }
+
+  /**
+   * Find a path with the fewest steps between two nodes, by breadth-first
+   * search.
+   *
+   * @param from
+   *          source node id
+   * @param to
+   *          target node id
+   * @return the node ids along the path, starting with {@code from} and ending
+   *         with {@code to}, or null if there is no known path
+   */
+  public int[] findPath(int from, int to) {
+    if (from == NONE || to == NONE)
+      return null;
+
+    if (from == to)
+      return new int[] { from };
+
+    if (searchParent.length < nodeCount) {
+      searchParent = new int[panoids.length];
+      searchQueue = new int[panoids.length];
+    }
+
+    int[] parent = searchParent;
+    int[] queue = searchQueue;
+    Arrays.fill(parent, 0, nodeCount, NONE);
+
+    parent[from] = from;
+    queue[0] = from;
+    int head = 0, tail = 1;
+
+    while (head < tail) {
+      int node = queue[head++];
+
+      for (int e = firstEdge[node]; e != NONE; e = nextEdge[e]) {
+        int next = edgeTarget[e];
+
+        if (parent[next] != NONE)
+          continue;
+
+        parent[next] = node;
+
+        if (next == to)
+          return unwindPath(parent, from, to);
+
+        queue[tail++] = next;
+      }
+    }
+
+    return null;
+  }
+
+  private static int[] unwindPath(int[] parent, int from, int to) {
+    int length = 1;
+    for (int node = to; node != from; node = parent[node]) {
+      length++;
+    }
+
+    int[] path = new int[length];
+    for (int node = to, i = length - 1; i >= 0; node = parent[node], i--) {
+      path[i] = node;
+    }
+
+    return path;
+  }
+
+  /**
+   * Count the edges out of a pano.
+   *
+   * @param panoid
+   *          the panoid
+   * @return number of known neighbours
+   */
+  public int getNeighbourCount(String panoid) {
+    int node = indexOf(panoid);
+    return node == NONE ? 0 : getNeighbourCount(node);
+  }
+
+  private int getNeighbourCount(int node) {
+    int n = 0;
+
+    for (int e = firstEdge[node]; e != NONE; e = nextEdge[e]) {
+      n++;
+    }
+
+    return n;
+  }
+
+  /**
+   * Build a heading table from the known edges out of a pano.
+   *
+   * @param panoid
+   *          the panoid
+   * @return the table, or null if the pano has no known edges
+   */
+  public LinkHeadingTable getHeadingTable(String panoid) {
+    int node = indexOf(panoid);
+
+    if (node == NONE || firstEdge[node] == NONE)
+      return null;
+
+    int n = getNeighbourCount(node);
+    double[] headings = new double[n];
+    String[] targets = new String[n];
+
+    int i = 0;
+    for (int e = firstEdge[node]; e != NONE; e = nextEdge[e]) {
+      headings[i] = edgeHeading[e];
+      targets[i] = panoids[edgeTarget[e]];
+      i++;
+    }
+
+    return LinkHeadingTable.fromArrays(headings, targets);
+  }
+
+  /**
+   * @param edgeListener
+   *          listener for edges replaced by links updates, or null
+   */
+  public void setEdgeListener(EdgeListener edgeListener) {
+    this.edgeListener = edgeListener;
+  }
+
+  public int getNodeCount() {
+    return nodeCount;
+  }
+
+  public int getEdgeCount() {
+    return edgeCount;
+  }
+
+  public int getMaxNodes() {
+    return maxNodes;
+  }
+
+  private void ensureNodeCapacity() {
+    if (nodeCount > panoids.length) {
+      int size = Math.min(maxNodes, panoids.length * 2);
+      panoids = Arrays.copyOf(panoids, size);
+      firstEdge = Arrays.copyOf(firstEdge, size);
+    }
+  }
+
+  private void rehash() {
+    int[] table = new int[slots.length * 2];
+    int mask = table.length - 1;
+
+    for (int id = 0; id < nodeCount; id++) {
+      int i = hash(panoids[id]) & mask;
+      while (table[i] != 0) {
+        i = (i + 1) & mask;
+      }
+      table[i] = id + 1;
+    }
+
+    slots = table;
+  }
+
+  private static int hash(String panoid) {
+    int h = panoid.hashCode();
+    return h ^ (h >>> 16);
+  }
+
+  private static int tableSizeFor(int nodes) {
+    int size = 1;
+    while (size < nodes * 2) {
+      size <<= 1;
+    }
+    return size;
+  }
+}
@@ -0,0 +1,478 @@
+/*
+ * Copyright (C) 2015 End Point Corporation
+ * Copyright (C) 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.endpoint.lg.streetview.master;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+
+/**
+ * A file of pano graph edges in a fixed-record binary layout.
+ *
+ * <p>
+ * The file starts with a header of magic, version and record size, followed
+ * by one record per edge: source panoid, target panoid, each as a length byte
+ * and up to {@link #PANOID_BYTES} - 1 bytes of UTF-8, then the heading as a
+ * float. All values are big-endian.
+ *
+ * <p>
+ * On startup the whole file is read into a {@link PanoGraph} on the heap:
+ * every record is decoded, its panoids become Strings and the graph is
+ * rebuilt edge by edge, so startup time grows with the file. The mapping is
+ * only a read buffer; lookups never touch the file. Links updates are then appended as they are
+ * observed: a record with an empty target panoid, which clears the edges out
+ * of its source, followed by one record per new edge. A partial record at the
+ * end, from a crash mid-write, is dropped. The file only ever grows, and
+ * {@link #compact(File, int)} rewrites it with one record per current edge.
+ *
+ * <p>
+ * {@link #append(String, String, float)} may be called from the model thread
+ * while {@link #flush()} runs on another. Flushes are serialized with each
+ * other and with {@link #close()}; a flush after close does nothing.
+ */
+public class PanoGraphStore implements PanoGraph.EdgeListener {
+
+  /**
+   * Identifies a pano graph file.
+   */
+  public static final int MAGIC = 0x50475048; // "PGPH"
+
+  /**
+   * Current file layout version.
+   */
+  public static final int VERSION = 1;
+
+  /**
+   * Bytes reserved for each panoid, including its length byte.
+   */
+  public static final int PANOID_BYTES = 64;
+
+  /**
+   * Bytes per edge record.
+   */
+  public static final int RECORD_BYTES = 2 * PANOID_BYTES + 4;
+
+  /**
+   * Bytes in the file header.
+   */
+  public static final int HEADER_BYTES = 12;
+
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  /**
+   * Most records mapped at once while loading.
+   */
+  private static final int MAP_RECORDS = (64 << 20) / RECORD_BYTES;
+
+  /**
+   * Records buffered between flushes.
+   */
+  private static final int BUFFER_RECORDS = 256;
+
+  private final RandomAccessFile raf;
+  private final FileChannel channel;
+
+  private ByteBuffer pending = ByteBuffer.allocate(BUFFER_RECORDS * RECORD_BYTES);
+  private ByteBuffer writing = ByteBuffer.allocate(BUFFER_RECORDS * RECORD_BYTES);
+
+  private long records;
+  private long skipped;
+  private long discarded;
+
+  // held for a whole flush, so close() can't swap or close under one
+  private final Object flushLock = new Object();
+  private boolean closed;
+
+  /**
+   * Open a store, creating the file if needed.
+   *
+   * @param file
+   *          the graph file
+   * @throws IOException
+   *           if the file can't be opened or isn't a graph file
+   */
+  public PanoGraphStore(File file) throws IOException {
+    raf = new RandomAccessFile(file, "rw");
+    channel = raf.getChannel();
+
+    if (channel.size() < HEADER_BYTES) {
+      writeHeader(channel);
+    } else {
+      checkHeader(channel);
+    }
+
+    // drop a torn record at the end
+    records = (channel.size() - HEADER_BYTES) / RECORD_BYTES;
+    long end = HEADER_BYTES + records * RECORD_BYTES;
+    channel.truncate(end);
+    channel.position(end);
+  }
+
+  /**
+   * Load every stored edge into a graph. This is a full decode of the file,
+   * not a lazy view of it.
+   *
+   * <p>
+   * Loading stops at the first corrupt record, such as one with an impossible
+   * panoid length or a non-finite heading, and the file is cut back to the
+   * records before it, so new records never follow garbage.
+   *
+   * @param graph
+   *          the graph
+   * @return number of edge records applied
+   * @throws IOException
+   *           if the file can't be mapped
+   */
+  public synchronized long load(PanoGraph graph) throws IOException {
+    byte[] scratch = new byte[PANOID_BYTES];
+    long loaded = 0;
+    long i = 0;
+
+    // map a window at a time, so the file isn't limited to one 2 GB mapping
+    load: while (i < records) {
+      long count = Math.min(records - i, MAP_RECORDS);
+      MappedByteBuffer map =
+          channel.map(FileChannel.MapMode.READ_ONLY, HEADER_BYTES + i * RECORD_BYTES, count
+              * RECORD_BYTES);
+
+      for (int r = 0; r < count; r++, i++) {
+        int base = r * RECORD_BYTES;
+        String from = readPanoid(map, base, scratch);
+        String to = readPanoid(map, base + PANOID_BYTES, scratch);
+        float heading = map.getFloat(base + 2 * PANOID_BYTES);
+
+        if (from == null || from.isEmpty() || to == null || Float.isNaN(heading)
+            || Float.isInfinite(heading))
+          break load;
+
+        int f = graph.intern(from);
+
+        if (to.isEmpty()) {
+          if (f != PanoGraph.NONE)
+            graph.clearEdges(f);
+          continue;
+        }
+
+        int t = graph.intern(to);
+
+        if (f != PanoGraph.NONE && t != PanoGraph.NONE) {
+          graph.addEdge(f, t, heading);
+          loaded++;
+        }
+      }
+    }
+
+    if (i < records) {
+      discarded = records - i;
+      records = i;
+
+      long end = HEADER_BYTES + records * RECORD_BYTES;
+      channel.truncate(end);
+      channel.position(end);
+    }
+
+    return loaded;
+  }
+
+  /**
+   * Queue a record clearing a pano's edges to be written on the next flush.
+   */
+  @Override
+  public void onEdgesCleared(String from) {
+    append(from, "", 0);
+  }
+
+  /**
+   * Queue an edge to be written on the next flush.
+   */
+  @Override
+  public void onEdgeAdded(String from, String to, float heading) {
+    append(from, to, heading);
+  }
+
+  /**
+   * Queue an edge to be written on the next flush.
+   *
+   * @param from
+   *          source panoid
+   * @param to
+   *          target panoid
+   * @param heading
+   *          heading from source to target
+   */
+  public synchronized void append(String from, String to, float heading) {
+    byte[] f = from.getBytes(UTF8);
+    byte[] t = to.getBytes(UTF8);
+
+    if (f.length >= PANOID_BYTES || t.length >= PANOID_BYTES) {
+      skipped++;
+      return;
+    }
+
+    if (pending.remaining() < RECORD_BYTES) {
+      ByteBuffer larger = ByteBuffer.allocate(pending.capacity() * 2);
+      pending.flip();
+      larger.put(pending);
+      pending = larger;
+    }
+
+    writeRecord(pending, f, t, heading);
+  }
+
+  /**
+   * Write queued edges to the file.
+   *
+   * @throws IOException
+   *           if the write fails
+   */
+  public void flush() throws IOException {
+    synchronized (flushLock) {
+      if (!closed)
+        write();
+    }
+  }
+
+  /**
+   * Flush and close the file.
+   *
+   * @throws IOException
+   *           if the final write fails
+   */
+  public void close() throws IOException {
+    synchronized (flushLock) {
+      if (closed)
+        return;
+
+      closed = true;
+
+      try {
+        write();
+      } finally {
+        raf.close();
+      }
+    }
+  }
+
+  /**
+   * Write the pending buffer. The caller holds the flush lock.
+   */
+  private void write() throws IOException {
+    ByteBuffer out;
+
+    synchronized (this) {
+      if (pending.position() == 0)
+        return;
+
+      out = pending;
+      pending = writing;
+      writing = out;
+    }
+
+    // write outside the append lock, so appends never wait on the disk
+    out.flip();
+    while (out.hasRemaining()) {
+      channel.write(out);
+    }
+    out.clear();
+
+    synchronized (this) {
+      records = (channel.position() - HEADER_BYTES) / RECORD_BYTES;
+    }
+  }
+
+  /**
+   * @return number of records in the file
+   */
+  public synchronized long getRecordCount() {
+    return records;
+  }
+
+  /**
+   * @return number of records cut from the file by {@link #load(PanoGraph)}
+   *         from the first corrupt one on
+   */
+  public synchronized long getDiscardedCount() {
+    return discarded;
+  }
+
+  /**
+   * @return number of edges not stored because a panoid was too long
+   */
+  public synchronized long getSkippedCount() {
+    return skipped;
+  }
+
+  /**
+   * Rewrite a graph file with exactly one record per edge.
+   *
+   * @param file
+   *          the graph file
+   * @param maxNodes
+   *          most panos to keep
+   * @return number of records written
+   * @throws IOException
+   *           if the file can't be read or written
+   */
+  public static long compact(File file, int maxNodes) throws IOException {
+    PanoGraph graph = new PanoGraph(maxNodes);
+
+    PanoGraphStore source = new PanoGraphStore(file);
+    try {
+      source.load(graph);
+    } finally {
+      source.raf.close();
+    }
+
+    File temp = new File(file.getPath() + ".compact");
+    RandomAccessFile out = new RandomAccessFile(temp, "rw");
+    long written = 0;
+
+    try {
+      FileChannel channel = out.getChannel();
+      channel.truncate(0);
+      writeHeader(channel);
+
+      ByteBuffer buffer = ByteBuffer.allocate(BUFFER_RECORDS * RECORD_BYTES);
+
+      for (int node = 0; node < graph.getNodeCount(); node++) {
+        byte[] f = graph.getPanoid(node).getBytes(UTF8);
+
+        for (int e = graph.getFirstEdge(node); e != PanoGraph.NONE; e = graph.getNextEdge(e)) {
+          byte[] t = graph.getPanoid(graph.getEdgeTarget(e)).getBytes(UTF8);
+
+          if (buffer.remaining() < RECORD_BYTES) {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+              channel.write(buffer);
+            }
+            buffer.clear();
+          }
+
+          writeRecord(buffer, f, t, graph.getEdgeHeading(e));
+          written++;
+        }
+      }
+
+      buffer.flip();
+      while (buffer.hasRemaining()) {
+        channel.write(buffer);
+      }
+
+      channel.force(true);
+    } finally {
+      out.close();
+    }
+
+    if (!temp.renameTo(file)) {
+      // some platforms won't rename over an existing file
+      if (!file.delete() || !temp.renameTo(file))
+        throw new IOException("Could not replace " + file + " with " + temp);
+    }
+
+    return written;
+  }
+
+  /**
+   * Compact a graph file from the command line. The activity must not be
+   * running, as it appends to the file.
+   *
+   * <p>
+   * Usage: <code>PanoGraphStore &lt;file&gt; [maxNodes]</code>
+   *
+   * @param args
+   *          the graph file, and optionally the most panos to keep
+   * @throws IOException
+   *           if the file can't be compacted
+   */
+  public static void main(String[] args) throws IOException {
+    if (args.length < 1) {
+      System.err.println("Usage: PanoGraphStore <file> [maxNodes]");
+      System.exit(1);
+    }
+
+    File file = new File(args[0]);
+    int maxNodes =
+        args.length > 1 ? Integer.parseInt(args[1]) : StreetviewModel.DEFAULT_GRAPH_MAX_NODES;
+
+    long before = file.length();
+    long records = compact(file, maxNodes);
+
+    System.out.println("Compacted " + file + " from " + before + " to " + file.length()
+        + " bytes, " + records + " edges");
+  }
+
+  private static void writeHeader(FileChannel channel) throws IOException {
+    ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+    header.putInt(MAGIC).putInt(VERSION).putInt(RECORD_BYTES);
+    header.flip();
+
+    channel.position(0);
+    while (header.hasRemaining()) {
+      channel.write(header);
+    }
+  }
+
+  private static void checkHeader(FileChannel channel) throws IOException {
+    ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+
+    channel.position(0);
+    while (header.hasRemaining() && channel.read(header) >= 0) {
+      // keep reading
+    }
+    header.flip();
+
+    if (header.remaining() < HEADER_BYTES || header.getInt() != MAGIC
+        || header.getInt() != VERSION || header.getInt() != RECORD_BYTES)
+      throw new IOException("Not a version " + VERSION + " pano graph file");
+  }
+
+  private static void writeRecord(ByteBuffer buffer, byte[] from, byte[] to, float heading) {
+    writePanoid(buffer, from);
+    writePanoid(buffer, to);
+    buffer.putFloat(heading);
+  }
+
+  private static void writePanoid(ByteBuffer buffer, byte[] panoid) {
+    buffer.put((byte) panoid.length);
+    buffer.put(panoid);
+
+    for (int i = panoid.length + 1; i < PANOID_BYTES; i++) {
+      buffer.put((byte) 0);
+    }
+  }
+
+  /**
+   * @return the panoid, or null if its length byte is out of range
+   */
+  private static String readPanoid(ByteBuffer buffer, int offset, byte[] scratch) {
+    int length = buffer.get(offset) & 0xff;
+
+    if (length >= PANOID_BYTES)
+      return null;
+
+    for (int i = 0; i < length; i++) {
+      scratch[i] = buffer.get(offset + 1 + i);
+    }
+
+    return new String(scratch, 0, length, UTF8);
+  }
+}
@@ -0,0 +1,291 @@
+/*
+ * Copyright (C) 2015 End Point Corporation
+ * Copyright (C) 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.endpoint.lg.streetview.master;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Per-route message counters for a fixed set of routes.
+ *
+ * <p>
+ * Counters are striped by thread, so ROS callback threads recording at the
+ * same time update different slots and never contend. Each route has one
+ * cache line of counters per stripe, holding all of its metrics, so stripes
+ * don't share lines either. Readers add up the stripes.
+ *
+ * <p>
+ * Message sizes are estimated from a sample of one message in
+ * {@link #SIZE_SAMPLE_INTERVAL} per route and thread; the messages in between
+ * are counted at the last sampled size, so high-rate routes don't walk every
+ * message.
+ *
+ * <p>
+ * Counts for routes not named at construction are ignored.
+ */
+public class RouteMetrics {
+
+  /**
+   * Messages seen.
+   */
+  public static final int MESSAGES = 0;
+
+  /**
+   * Estimated message size, in bytes, from sampled messages.
+   */
+  public static final int BYTES = 1;
+
+  /**
+   * Messages whose handler failed.
+   */
+  public static final int FAILURES = 2;
+
+  /**
+   * Messages discarded before handling, such as echoes and stale updates.
+   */
+  public static final int DROPPED = 3;
+
+  /**
+   * Messages handled but without effect, such as stale links or
+   * imperceptible POV changes.
+   */
+  public static final int FILTERED = 4;
+
+  /**
+   * Messages folded into another one.
+   */
+  public static final int COALESCED = 5;
+
+  /**
+   * Time spent in the handler, in nanoseconds.
+   */
+  public static final int HANDLER_NANOS = 6;
+
+  private static final String[] METRIC_NAMES = { "messages", "bytes", "failures", "dropped",
+      "filtered", "coalesced", "handler.ns" };
+
+  /**
+   * Messages per route and thread between size estimates; a power of two.
+   */
+  public static final int SIZE_SAMPLE_INTERVAL = 64;
+
+  /**
+   * Longs per route and stripe; one 64 byte cache line.
+   */
+  private static final int LINE = 8;
+
+  /**
+   * Slot after the metrics holding the last sampled message size.
+   */
+  private static final int SAMPLED_SIZE = 7;
+
+  private final String[] routes;
+  private final Map<String, Integer> index = new HashMap<String, Integer>();
+  private final int stripeMask;
+  private final AtomicLongArray counters;
+
+  // for rates, only touched by snapshot()
+  private final long[] lastMessages;
+  private long lastSnapshotNanos;
+
+  /**
+   * @param routes
+   *          the routes to count
+   */
+  public RouteMetrics(List<String> routes) {
+    this.routes = routes.toArray(new String[routes.size()]);
+
+    for (int i = 0; i < this.routes.length; i++) {
+      index.put(this.routes[i], i);
+    }
+
+    int stripes = 1;
+    while (stripes < Runtime.getRuntime().availableProcessors() && stripes < 64) {
+      stripes <<= 1;
+    }
+
+    stripeMask = stripes - 1;
+    counters = new AtomicLongArray(this.routes.length * stripes * LINE);
+    lastMessages = new long[this.routes.length];
+    lastSnapshotNanos = System.nanoTime();
+  }
+
+  /**
+   * Count one message on a route.
+   *
+   * @param route
+   *          the route
+   * @param metric
+   *          the metric, such as {@link #DROPPED}
+   */
+  public void increment(String route, int metric) {
+    add(route, metric, 1);
+  }
+
+  /**
+   * Add to a route's counter.
+   *
+   * @param route
+   *          the route
+   * @param metric
+   *          the metric, such as {@link #BYTES}
+   * @param delta
+   *          amount to add
+   */
+  public void add(String route, int metric, long delta) {
+    Integer r = index.get(route);
+
+    if (r != null)
+      counters.getAndAdd(slot(r, stripe(), metric), delta);
+  }
+
+  /**
+   * Count a message seen on a route, with its estimated size.
+   *
+   * @param route
+   *          the route
+   * @param message
+   *          the message, only walked when its size is sampled
+   */
+  public void message(String route, Map<String, Object> message) {
+    Integer r = index.get(route);
+
+    if (r != null) {
+      int stripe = stripe();
+      long n = counters.incrementAndGet(slot(r, stripe, MESSAGES));
+      int sampled = slot(r, stripe, SAMPLED_SIZE);
+      long size;
+
+      if ((n & (SIZE_SAMPLE_INTERVAL - 1)) == 1) {
+        size = estimateBytes(message);
+        counters.set(sampled, size);
+      } else {
+        size = counters.get(sampled);
+      }
+
+      counters.getAndAdd(slot(r, stripe, BYTES), size);
+    }
+  }
+
+  /**
+   * @return the counted routes
+   */
+  public List<String> getRoutes() {
+    return Collections.unmodifiableList(Arrays.asList(routes));
+  }
+
+  /**
+   * @param route
+   *          the route
+   * @param metric
+   *          the metric
+   * @return the total over all threads, or 0 for an unknown route
+   */
+  public long get(String route, int metric) {
+    Integer r = index.get(route);
+    return r == null ? 0 : sum(r, metric);
+  }
+
+  /**
+   * Take a snapshot of every counter, with message rates since the previous
+   * snapshot.
+   *
+   * @return metrics by name, by route
+   */
+  public synchronized Map<String, Object> snapshot() {
+    long now = System.nanoTime();
+    double seconds = (now - lastSnapshotNanos) / 1e9;
+    lastSnapshotNanos = now;
+
+    Map<String, Object> snapshot = new LinkedHashMap<String, Object>();
+
+    for (int r = 0; r < routes.length; r++) {
+      Map<String, Object> route = new LinkedHashMap<String, Object>();
+
+      for (int metric = 0; metric < METRIC_NAMES.length; metric++) {
+        route.put(METRIC_NAMES[metric], sum(r, metric));
+      }
+
+      long messages = (Long) route.get(METRIC_NAMES[MESSAGES]);
+      double rate = seconds > 0 ? (messages - lastMessages[r]) / seconds : 0;
+      lastMessages[r] = messages;
+
+      route.put("rate", Math.round(rate * 10) / 10.0);
+      snapshot.put(routes[r], route);
+    }
+
+    return snapshot;
+  }
+
+  private long sum(int route, int metric) {
+    long total = 0;
+
+    for (int stripe = 0; stripe <= stripeMask; stripe++) {
+      total += counters.get(slot(route, stripe, metric));
+    }
+
+    return total;
+  }
+
+  private int stripe() {
+    return (int) Thread.currentThread().getId() & stripeMask;
+  }
+
+  private int slot(int route, int stripe, int metric) {
+    return ((route * (stripeMask + 1)) + stripe) * LINE + metric;
+  }
+
+  /**
+   * Estimate the JSON size of a message without serializing it.
+   *
+   * @param value
+   *          a message or value within one
+   * @return approximate size in bytes
+   */
+  static long estimateBytes(Object value) {
+    if (value == null)
+      return 4;
+
+    if (value instanceof String)
+      return ((String) value).length() + 2;
+
+    if (value instanceof Map) {
+      long n = 2;
+      for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+        n += String.valueOf(entry.getKey()).length() + 4 + estimateBytes(entry.getValue());
+      }
+      return n;
+    }
+
+    if (value instanceof List) {
+      long n = 2;
+      for (Object item : (List<?>) value) {
+        n += estimateBytes(item) + 1;
+      }
+      return n;
+    }
+
+    // numbers and booleans
+    return 8;
+  }
+}
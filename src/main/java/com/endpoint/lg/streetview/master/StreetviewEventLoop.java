@@ -0,0 +1,293 @@
+/*
+ * Copyright (C) 2015 End Point Corporation
+ * Copyright (C) 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.endpoint.lg.streetview.master;
+
+import org.apache.commons.logging.Log;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A single-consumer event loop which owns the Street View model.
+ *
+ * <p>
+ * Any number of threads may submit messages and tasks. A single dedicated
+ * thread runs them in submission order, so handlers never race on model state
+ * and need no locks of their own.
+ */
+public class StreetviewEventLoop {
+
+  /**
+   * Receives work from the loop thread.
+   */
+  public interface Handler {
+    /**
+     * Handle a routed input message.
+     *
+     * @param channel
+     *          the input channel
+     * @param message
+     *          the message
+     * @param receivedNanos
+     *          {@link System#nanoTime()} when the message arrived
+     */
+    void handleMessage(String channel, Map<String, Object> message, long receivedNanos);
+
+    /**
+     * Called when the loop has drained its queue, or has handled
+     * {@link StreetviewEventLoop#BATCH_LIMIT} events in a row. A good place to
+     * apply coalesced input.
+     */
+    void onBatchEnd();
+  }
+
+  /**
+   * A queued unit of work. Exactly one of {@code task} or {@code channel} is
+   * set.
+   */
+  private static final class Event {
+    final String channel;
+    final Map<String, Object> message;
+    final Runnable task;
+    final long submitNanos;
+
+    Event(String channel, Map<String, Object> message, Runnable task, long submitNanos) {
+      this.channel = channel;
+      this.message = message;
+      this.task = task;
+      this.submitNanos = submitNanos;
+    }
+  }
+
+  /**
+   * Most events handled before the batch is ended, so a queue that never
+   * drains still gets its coalesced input applied.
+   */
+  public static final int BATCH_LIMIT = 64;
+
+  /**
+   * How long the loop thread parks when idle, as a guard against lost wakeups.
+   */
+  private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+  private final ConcurrentLinkedQueue<Event> queue = new ConcurrentLinkedQueue<Event>();
+  private final AtomicInteger depth = new AtomicInteger();
+  private final Handler handler;
+  private final Log log;
+  private final Thread thread;
+
+  private volatile boolean running;
+  private volatile boolean parked;
+
+  private volatile int maxDepth;
+  private volatile long handledCount;
+  private volatile long totalHandlerNanos;
+  private volatile long maxHandlerNanos;
+  private volatile long totalQueueNanos;
+
+  /**
+   * @param name
+   *          name of the loop thread
+   * @param handler
+   *          handler for submitted messages
+   * @param log
+   *          log for handler errors
+   */
+  public StreetviewEventLoop(String name, Handler handler, Log log) {
+    this.handler = handler;
+    this.log = log;
+
+    thread = new Thread(new Runnable() {
+      public void run() {
+        runLoop();
+      }
+    }, name);
+    thread.setDaemon(true);
+  }
+
+  /**
+   * Start the loop thread.
+   */
+  public void start() {
+    running = true;
+    thread.start();
+  }
+
+  /**
+   * Stop the loop thread, discarding any queued work.
+   */
+  public void stop() {
+    running = false;
+    LockSupport.unpark(thread);
+
+    try {
+      thread.join(TimeUnit.SECONDS.toMillis(1));
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+
+    queue.clear();
+    depth.set(0);
+  }
+
+  /**
+   * Queue a message for the handler, timestamped by the caller. Safe to call
+   * from any thread.
+   *
+   * @param channel
+   *          the input channel
+   * @param message
+   *          the message
+   * @param receivedNanos
+   *          {@link System#nanoTime()} when the message arrived
+   */
+  public void submit(String channel, Map<String, Object> message, long receivedNanos) {
+    enqueue(new Event(channel, message, null, receivedNanos));
+  }
+
+  /**
+   * Queue a task to run on the loop thread. Safe to call from any thread.
+   *
+   * @param task
+   *          the task
+   */
+  public void execute(Runnable task) {
+    enqueue(new Event(null, null, task, System.nanoTime()));
+  }
+
+  private void enqueue(Event event) {
+    queue.offer(event);
+
+    int d = depth.incrementAndGet();
+    if (d > maxDepth)
+      maxDepth = d;
+
+    if (parked)
+      LockSupport.unpark(thread);
+  }
+
+  private void runLoop() {
+    int batch = 0;
+
+    while (running) {
+      Event event = queue.poll();
+
+      if (event == null || batch >= BATCH_LIMIT) {
+        if (batch > 0) {
+          endBatch();
+          batch = 0;
+        }
+      }
+
+      if (event == null) {
+        parked = true;
+
+        // re-check after publishing the parked flag so a concurrent submit
+        // can't be missed
+        if (queue.isEmpty() && running)
+          LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+
+        parked = false;
+        continue;
+      }
+
+      depth.decrementAndGet();
+      dispatch(event);
+      batch++;
+    }
+  }
+
+  private void endBatch() {
+    try {
+      handler.onBatchEnd();
+    } catch (RuntimeException e) {
+      log.error("Error while ending batch on " + thread.getName(), e);
+    }
+  }
+
+  private void dispatch(Event event) {
+    long start = System.nanoTime();
+
+    try {
+      if (event.task != null) {
+        event.task.run();
+      } else {
+        handler.handleMessage(event.channel, event.message, event.submitNanos);
+      }
+    } catch (RuntimeException e) {
+      // never let a bad message kill the loop thread
+      log.error("Error while handling event on " + thread.getName(), e);
+    }
+
+    long elapsed = System.nanoTime() - start;
+
+    // only the loop thread writes these
+    handledCount++;
+    totalQueueNanos += start - event.submitNanos;
+    totalHandlerNanos += elapsed;
+    if (elapsed > maxHandlerNanos)
+      maxHandlerNanos = elapsed;
+  }
+
+  /**
+   * @return number of events currently queued
+   */
+  public int getQueueDepth() {
+    return depth.get();
+  }
+
+  /**
+   * @return highest queue depth observed
+   */
+  public int getMaxQueueDepth() {
+    return maxDepth;
+  }
+
+  /**
+   * @return number of events handled
+   */
+  public long getHandledCount() {
+    return handledCount;
+  }
+
+  /**
+   * @return mean time spent in the handler per event, in nanoseconds
+   */
+  public long getMeanHandlerNanos() {
+    long n = handledCount;
+    return n == 0 ? 0 : totalHandlerNanos / n;
+  }
+
+  /**
+   * @return longest time spent in the handler for one event, in nanoseconds
+   */
+  public long getMaxHandlerNanos() {
+    return maxHandlerNanos;
+  }
+
+  /**
+   * @return mean time an event waited in the queue, in nanoseconds
+   */
+  public long getMeanQueueNanos() {
+    long n = handledCount;
+    return n == 0 ? 0 : totalQueueNanos / n;
+  }
+}
@@ -0,0 +1,468 @@
+/*
+ * Copyright (C) 2015 End Point Corporation
+ * Copyright (C) 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.endpoint.lg.streetview.master;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+
+/**
+ * An append-only journal of pano and POV changes, for restoring state after a
+ * restart.
+ *
+ * <p>
+ * Recording a change only updates a pending value; {@link #flush()}, run
+ * periodically off the input path, writes whatever changed since the last
+ * flush. POV changes are therefore batched down to one record per flush. Once
+ * the journal holds {@link #SNAPSHOT_RECORDS} records, it is replaced by a
+ * snapshot holding only the current state.
+ *
+ * <p>
+ * Each record is a type byte and a timestamp, followed by a panoid for pano
+ * records or heading and pitch for POV records. Headings are stored in [0,
+ * 360). Recovery replays the records and stops quietly at the first torn or
+ * invalid one; the journal is then truncated to the last good record before
+ * anything is appended, so later records are never read as part of it.
+ *
+ * <p>
+ * Flushes are serialized with each other and with {@link #close()}; a flush
+ * after close does nothing.
+ */
+public class StreetviewJournal {
+
+  /**
+   * Record type of a pano change.
+   */
+  public static final byte RECORD_PANO = 1;
+
+  /**
+   * Record type of a POV change.
+   */
+  public static final byte RECORD_POV = 2;
+
+  /**
+   * Records written before the journal is replaced by a snapshot.
+   */
+  public static final int SNAPSHOT_RECORDS = 10000;
+
+  /**
+   * State recovered from a journal.
+   */
+  public static class State {
+    private String panoid;
+    private boolean hasPov;
+    private double heading;
+    private double pitch;
+    private int records;
+    private long length;
+    private long discarded;
+
+    /**
+     * @return the last panoid, or null if none was recorded
+     */
+    public String getPanoid() {
+      return panoid;
+    }
+
+    /**
+     * @return true if a POV was recorded
+     */
+    public boolean hasPov() {
+      return hasPov;
+    }
+
+    public double getHeading() {
+      return heading;
+    }
+
+    public double getPitch() {
+      return pitch;
+    }
+
+    /**
+     * @return number of records replayed
+     */
+    public int getRecordCount() {
+      return records;
+    }
+
+    /**
+     * @return number of bytes after the last good record, from a torn or
+     *         invalid record
+     */
+    public long getDiscardedBytes() {
+      return discarded;
+    }
+  }
+
+  /**
+   * Counts the bytes read through it.
+   */
+  private static class CountingInputStream extends FilterInputStream {
+    long count;
+
+    CountingInputStream(InputStream in) {
+      super(in);
+    }
+
+    @Override
+    public int read() throws IOException {
+      int b = super.read();
+      if (b >= 0)
+        count++;
+      return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      int n = super.read(b, off, len);
+      if (n > 0)
+        count += n;
+      return n;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+      long skipped = super.skip(n);
+      count += skipped;
+      return skipped;
+    }
+  }
+
+  private final File file;
+  private final State recovered;
+  private DataOutputStream out;
+  private volatile int records;
+  private volatile long snapshots;
+
+  // held for a whole flush, so close() can't write or close under one
+  private final Object flushLock = new Object();
+  private boolean closed;
+
+  // pending changes, guarded by this
+  private String pendingPanoid;
+  private boolean povPending;
+  private double pendingHeading;
+  private double pendingPitch;
+
+  // last written state, guarded by flushLock
+  private String writtenPanoid;
+  private boolean hasWrittenPov;
+  private double writtenHeading;
+  private double writtenPitch;
+
+  /**
+   * Open a journal for appending, recovering its state first.
+   *
+   * @param file
+   *          the journal file
+   * @throws IOException
+   *           if the journal can't be opened
+   */
+  public StreetviewJournal(File file) throws IOException {
+    this.file = file;
+
+    recovered = recover(file);
+    writtenPanoid = recovered.panoid;
+    hasWrittenPov = recovered.hasPov;
+    writtenHeading = recovered.heading;
+    writtenPitch = recovered.pitch;
+    records = recovered.records;
+
+    if (recovered.discarded > 0)
+      truncate(file, recovered.length);
+
+    out = open(file, true);
+  }
+
+  /**
+   * @return the state recovered when the journal was opened
+   */
+  public State getRecoveredState() {
+    return recovered;
+  }
+
+  /**
+   * Read the last state recorded in a journal.
+   *
+   * @param file
+   *          the journal file
+   * @return the state, empty if the file doesn't exist
+   * @throws IOException
+   *           if the journal can't be read
+   */
+  public static State recover(File file) throws IOException {
+    State state = new State();
+
+    if (!file.exists())
+      return state;
+
+    CountingInputStream counter =
+        new CountingInputStream(new BufferedInputStream(new FileInputStream(file)));
+    DataInputStream in = new DataInputStream(counter);
+
+    try {
+      while (true) {
+        byte type = in.readByte();
+        in.readLong(); // timestamp
+
+        // read and check whole records before applying them
+        if (type == RECORD_PANO) {
+          String panoid = in.readUTF();
+
+          if (panoid.isEmpty())
+            break;
+
+          state.panoid = panoid;
+        } else if (type == RECORD_POV) {
+          double heading = in.readDouble();
+          double pitch = in.readDouble();
+
+          if (!isValidPov(heading, pitch))
+            break;
+
+          state.heading = heading;
+          state.pitch = pitch;
+          state.hasPov = true;
+        } else {
+          break; // garbage, treat as the end
+        }
+
+        state.records++;
+        state.length = counter.count;
+      }
+    } catch (EOFException e) {
+      // end of journal, possibly a torn record
+    } finally {
+      in.close();
+    }
+
+    state.discarded = file.length() - state.length;
+    return state;
+  }
+
+  /**
+   * @return true if a recorded POV could have been written by this journal
+   */
+  private static boolean isValidPov(double heading, double pitch) {
+    return heading >= 0 && heading < 360 && pitch >= -90 && pitch <= 90;
+  }
+
+  /**
+   * Cut a journal back to its last good record.
+   */
+  private static void truncate(File file, long length) throws IOException {
+    RandomAccessFile raf = new RandomAccessFile(file, "rw");
+
+    try {
+      raf.setLength(length);
+    } finally {
+      raf.close();
+    }
+  }
+
+  /**
+   * Record a pano change.
+   *
+   * @param panoid
+   *          the new panoid
+   */
+  public synchronized void recordPano(String panoid) {
+    pendingPanoid = panoid;
+  }
+
+  /**
+   * Record a POV change. Non-finite values are ignored.
+   *
+   * @param heading
+   *          the new heading, in degrees
+   * @param pitch
+   *          the new pitch, in degrees
+   */
+  public synchronized void recordPov(double heading, double pitch) {
+    if (Double.isNaN(heading) || Double.isInfinite(heading) || Double.isNaN(pitch))
+      return;
+
+    pitch = Math.max(-90, Math.min(90, pitch));
+    heading %= 360;
+    if (heading < 0)
+      heading += 360;
+
+    pendingHeading = heading;
+    pendingPitch = pitch;
+    povPending = true;
+  }
+
+  /**
+   * Write pending changes to the journal.
+   *
+   * @throws IOException
+   *           if the write fails
+   */
+  public void flush() throws IOException {
+    synchronized (flushLock) {
+      if (!closed)
+        write();
+    }
+  }
+
+  /**
+   * Write pending changes. The caller holds the flush lock.
+   */
+  private void write() throws IOException {
+    String panoid;
+    boolean pov;
+    double heading, pitch;
+
+    synchronized (this) {
+      panoid = pendingPanoid;
+      pov = povPending;
+      heading = pendingHeading;
+      pitch = pendingPitch;
+
+      pendingPanoid = null;
+      povPending = false;
+    }
+
+    long now = System.currentTimeMillis();
+    boolean wrote = false;
+
+    if (panoid != null && !panoid.equals(writtenPanoid)) {
+      writePano(out, now, panoid);
+      writtenPanoid = panoid;
+      records++;
+      wrote = true;
+    }
+
+    if (pov && (!hasWrittenPov || heading != writtenHeading || pitch != writtenPitch)) {
+      writePov(out, now, heading, pitch);
+      hasWrittenPov = true;
+      writtenHeading = heading;
+      writtenPitch = pitch;
+      records++;
+      wrote = true;
+    }
+
+    if (wrote)
+      out.flush();
+
+    if (records >= SNAPSHOT_RECORDS)
+      snapshot();
+  }
+
+  /**
+   * Replace the journal with a snapshot of the last written state.
+   */
+  private void snapshot() throws IOException {
+    File temp = new File(file.getPath() + ".snapshot");
+    DataOutputStream snapshot = open(temp, false);
+    long now = System.currentTimeMillis();
+    int written = 0;
+
+    try {
+      if (writtenPanoid != null) {
+        writePano(snapshot, now, writtenPanoid);
+        written++;
+      }
+
+      if (hasWrittenPov) {
+        writePov(snapshot, now, writtenHeading, writtenPitch);
+        written++;
+      }
+    } finally {
+      snapshot.close();
+    }
+
+    out.close();
+
+    if (!temp.renameTo(file)) {
+      // some platforms won't rename over an existing file
+      if (!file.delete() || !temp.renameTo(file)) {
+        out = open(file, true);
+        throw new IOException("Could not replace " + file + " with " + temp);
+      }
+    }
+
+    out = open(file, true);
+    records = written;
+    snapshots++;
+  }
+
+  /**
+   * Flush and close the journal.
+   *
+   * @throws IOException
+   *           if the final write fails
+   */
+  public void close() throws IOException {
+    synchronized (flushLock) {
+      if (closed)
+        return;
+
+      closed = true;
+
+      try {
+        write();
+      } finally {
+        out.close();
+      }
+    }
+  }
+
+  /**
+   * @return number of records in the journal
+   */
+  public int getRecordCount() {
+    return records;
+  }
+
+  /**
+   * @return number of snapshots taken
+   */
+  public long getSnapshotCount() {
+    return snapshots;
+  }
+
+  private static DataOutputStream open(File file, boolean append) throws IOException {
+    return new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, append)));
+  }
+
+  private static void writePano(DataOutputStream out, long time, String panoid)
+      throws IOException {
+    out.writeByte(RECORD_PANO);
+    out.writeLong(time);
+    out.writeUTF(panoid);
+  }
+
+  private static void writePov(DataOutputStream out, long time, double heading, double pitch)
+      throws IOException {
+    out.writeByte(RECORD_POV);
+    out.writeLong(time);
+    out.writeDouble(heading);
+    out.writeDouble(pitch);
+  }
+}
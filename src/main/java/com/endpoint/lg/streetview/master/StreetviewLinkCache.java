@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2015 End Point Corporation
+ * Copyright (C) 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.endpoint.lg.streetview.master;
+
+import com.endpoint.lg.support.domain.streetview.StreetviewLinks;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A bounded, least-recently-used cache of links by panoid.
+ * 
+ * <p>
+ * Not thread safe; owned by the model.
+ */
+public class StreetviewLinkCache {
+  private final int capacity;
+  private final LinkedHashMap<String, StreetviewLinks> entries;
+
+  private long hits;
+  private long misses;
+  private long evictions;
+
+  /**
+   * @param capacity
+   *          most panos to remember, or 0 to disable caching
+   */
+  public StreetviewLinkCache(final int capacity) {
+    this.capacity = capacity;
+
+    entries = new LinkedHashMap<String, StreetviewLinks>(16, 0.75f, true) {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, StreetviewLinks> eldest) {
+        if (size() > StreetviewLinkCache.this.capacity) {
+          evictions++;
+          return true;
+        }
+
+        return false;
+      }
+    };
+  }
+
+  /**
+   * Look up the links of a pano.
+   * 
+   * @param panoid
+   *          the panoid
+   * @return the links, or null if not cached
+   */
+  public StreetviewLinks get(String panoid) {
+    StreetviewLinks links = entries.get(panoid);
+
+    if (links != null) {
+      hits++;
+    } else {
+      misses++;
+    }
+
+    return links;
+  }
+
+  /**
+   * Remember the links of a pano.
+   * 
+   * @param panoid
+   *          the panoid
+   * @param links
+   *          the links
+   */
+  public void put(String panoid, StreetviewLinks links) {
+    if (capacity > 0 && panoid != null && links != null)
+      entries.put(panoid, links);
+  }
+
+  public int size() {
+    return entries.size();
+  }
+
+  public long getHits() {
+    return hits;
+  }
+
+  public long getMisses() {
+    return misses;
+  }
+
+  public long getEvictions() {
+    return evictions;
+  }
+}
@@ -18,18 +18,30 @@
 package com.endpoint.lg.streetview.master;
 
 import interactivespaces.activity.impl.ros.BaseRoutableRosActivity;
-import interactivespaces.util.data.json.JsonMapper;
+import interactivespaces.util.data.json.JsonBuilder;
 import interactivespaces.util.data.json.JsonNavigator;
 
 import com.endpoint.lg.support.evdev.InputKeyEvent;
 import com.endpoint.lg.support.message.RosMessageHandler;
-import com.endpoint.lg.support.message.Scene;
-import com.endpoint.lg.support.message.Window;
 import com.endpoint.lg.support.message.streetview.MessageTypesStreetview;
 import com.endpoint.lg.support.message.RosMessageHandlers;
 
+import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 import com.endpoint.lg.support.evdev.InputAbsState;
 import com.endpoint.lg.support.evdev.InputEventCodes;
@@ -78,57 +90,989 @@ public class StreetviewMasterActivity extends BaseRoutableRosActivity {
   /**
    * Field separator for panoid + pov scene data.
    */
-  public static final String SCENE_FIELD_SEPARATOR = ",";
+  public static final String SCENE_FIELD_SEPARATOR = StreetviewScene.SCENE_FIELD_SEPARATOR;
+
+  /**
+   * Configuration flag for running all handlers on a single event loop thread.
+   */
+  public static final String CONFIG_EVENT_LOOP_ENABLED = "lg.streetview.master.eventloop.enabled";
+
+  /**
+   * Configuration for the rate of input-driven POV broadcasts, in Hz. Zero
+   * broadcasts on every input event.
+   */
+  public static final String CONFIG_POV_PUBLISH_HZ = "lg.streetview.master.pov.publish.hz";
+
+  /**
+   * Configuration for the smallest input-driven POV change worth publishing,
+   * in degrees. Smaller changes accumulate until they add up.
+   */
+  public static final String CONFIG_POV_MIN_DELTA = "lg.streetview.master.pov.min.delta";
+
+  /**
+   * Configuration for the decimal places of published heading and pitch, or a
+   * negative number for full precision.
+   */
+  public static final String CONFIG_POV_PRECISION = "lg.streetview.master.pov.precision";
+
+  /**
+   * Configuration flag for publishing POV keyframes with heading velocity.
+   */
+  public static final String CONFIG_VELOCITY_ENABLED = "lg.streetview.master.velocity.enabled";
+
+  /**
+   * Configuration for how often heading velocity is measured, in Hz.
+   */
+  public static final String CONFIG_VELOCITY_SAMPLE_HZ = "lg.streetview.master.velocity.sample.hz";
+
+  /**
+   * Configuration for the longest time between velocity keyframes while
+   * turning, in milliseconds.
+   */
+  public static final String CONFIG_VELOCITY_KEYFRAME_MS =
+      "lg.streetview.master.velocity.keyframe.ms";
+
+  /**
+   * Configuration for how far, in degrees, displays may be allowed to
+   * extrapolate away from the true POV before a new keyframe is sent.
+   */
+  public static final String CONFIG_VELOCITY_TOLERANCE = "lg.streetview.master.velocity.tolerance";
+
+  /**
+   * Output route carrying POV keyframes with heading velocity.
+   */
+  public static final String MESSAGE_TYPE_STREETVIEW_VELOCITY = "velocity";
+
+  /**
+   * Configuration flag for publishing combined pano + POV state messages.
+   */
+  public static final String CONFIG_STATE_ENABLED = "lg.streetview.master.state.enabled";
+
+  /**
+   * Configuration for how many panos' links are cached, or 0 to disable.
+   */
+  public static final String CONFIG_LINK_CACHE_SIZE = "lg.streetview.master.links.cache.size";
+
+  /**
+   * Configuration for the most panos held in the pano graph.
+   */
+  public static final String CONFIG_GRAPH_MAX_NODES = "lg.streetview.master.graph.max.nodes";
+
+  /**
+   * Configuration flag for moving from panos whose links aren't cached using
+   * their edges in the pano graph, instead of waiting for the browser.
+   */
+  public static final String CONFIG_GRAPH_LINKS_ENABLED =
+      "lg.streetview.master.graph.links.enabled";
+
+  /**
+   * Configuration flag for keeping the pano graph in the activity's permanent
+   * data directory.
+   */
+  public static final String CONFIG_GRAPH_STORE_ENABLED =
+      "lg.streetview.master.graph.store.enabled";
+
+  /**
+   * File name of the pano graph store.
+   */
+  public static final String GRAPH_STORE_FILE = "panograph.bin";
+
+  /**
+   * How often new graph edges are written out, in milliseconds.
+   */
+  public static final int GRAPH_STORE_FLUSH_MS = 1000;
+
+  /**
+   * Configuration flag for journaling pano and POV changes to the activity's
+   * permanent data directory, and restoring them at startup.
+   */
+  public static final String CONFIG_JOURNAL_ENABLED = "lg.streetview.master.journal.enabled";
+
+  /**
+   * Configuration for how often journaled changes are written, in
+   * milliseconds.
+   */
+  public static final String CONFIG_JOURNAL_FLUSH_MS = "lg.streetview.master.journal.flush.ms";
+
+  /**
+   * Default time between journal writes, in milliseconds.
+   */
+  public static final int DEFAULT_JOURNAL_FLUSH_MS = 250;
+
+  /**
+   * File name of the state journal.
+   */
+  public static final String JOURNAL_FILE = "state.journal";
+
+  /**
+   * Configuration for how long refresh requests are gathered before one
+   * broadcast answers them all, in milliseconds. Zero answers each request.
+   */
+  public static final String CONFIG_REFRESH_WINDOW_MS = "lg.streetview.master.refresh.window.ms";
+
+  /**
+   * Configuration for a file to record all input messages to, relative to the
+   * permanent data directory. Empty to not record.
+   */
+  public static final String CONFIG_RECORD_FILE = "lg.streetview.master.record.file";
+
+  /**
+   * Configuration for a recorded input file to replay on activation, relative to
+   * the permanent data directory. Empty to not replay.
+   */
+  public static final String CONFIG_REPLAY_FILE = "lg.streetview.master.replay.file";
+
+  /**
+   * Configuration flag for replaying with the recorded timing, rather than as
+   * fast as possible.
+   */
+  public static final String CONFIG_REPLAY_REALTIME = "lg.streetview.master.replay.realtime";
+
+  /**
+   * Configuration flag for counting output messages without publishing them,
+   * for replay benchmarks.
+   */
+  public static final String CONFIG_HEADLESS = "lg.streetview.master.headless";
+
+  /**
+   * Configuration for the time between steps of a guided walk, in
+   * milliseconds.
+   */
+  public static final String CONFIG_NAVIGATE_STEP_MS = "lg.streetview.master.navigate.step.ms";
+
+  /**
+   * Default time between steps of a guided walk, in milliseconds.
+   */
+  public static final int DEFAULT_NAVIGATE_STEP_MS = 1000;
+
+  /**
+   * Input route carrying director scenes.
+   */
+  public static final String MESSAGE_TYPE_SCENE = "scene";
+
+  /**
+   * Input route requesting a guided walk to a pano.
+   */
+  public static final String MESSAGE_TYPE_STREETVIEW_NAVIGATE = "navigate";
+
+  /**
+   * Output route carrying pano and POV in a single message.
+   */
+  public static final String MESSAGE_TYPE_STREETVIEW_STATE = "state";
+
+  /**
+   * Input route requesting an immediate statistics snapshot.
+   */
+  public static final String MESSAGE_TYPE_STREETVIEW_STATS_REQUEST = "statsrequest";
+
+  /**
+   * Output route carrying statistics snapshots.
+   */
+  public static final String MESSAGE_TYPE_STREETVIEW_STATS = "stats";
+
+  /**
+   * Configuration for the time between statistics snapshots on the stats
+   * route, in milliseconds. Zero only publishes them on request.
+   */
+  public static final String CONFIG_STATS_INTERVAL_MS = "lg.streetview.master.stats.interval.ms";
+
+  /**
+   * Output route carrying per-route message counters.
+   */
+  public static final String MESSAGE_TYPE_STREETVIEW_STATUS = "status";
+
+  /**
+   * Configuration for the time between per-route counter snapshots on the
+   * status route, in milliseconds. Zero disables them.
+   */
+  public static final String CONFIG_STATUS_INTERVAL_MS = "lg.streetview.master.status.interval.ms";
+
+  /**
+   * Default time between status snapshots, in milliseconds.
+   */
+  public static final int DEFAULT_STATUS_INTERVAL_MS = 10000;
+
+  /**
+   * Activity configuration listing the input routes.
+   */
+  public static final String CONFIG_ROUTES_INPUTS = "space.activity.routes.inputs";
+
+  /**
+   * Activity configuration listing the output routes.
+   */
+  public static final String CONFIG_ROUTES_OUTPUTS = "space.activity.routes.outputs";
+
+  /**
+   * Output message field identifying the publishing master.
+   */
+  public static final String MESSAGE_FIELD_ORIGIN = "origin";
+
+  /**
+   * Output message field holding the publisher's sequence number.
+   */
+  public static final String MESSAGE_FIELD_SEQUENCE = "seq";
+
+  /**
+   * Output message field holding the publisher's monotonic timestamp, in
+   * milliseconds.
+   */
+  public static final String MESSAGE_FIELD_TIME = "time";
+
+  /**
+   * Links message field naming the pano the links belong to, if known.
+   */
+  public static final String MESSAGE_FIELD_LINKS_PANOID = "panoid";
 
   private StreetviewModel model;
 
   private RosMessageHandlers rosHandlers;
 
-  long lastMoveTime;
-  int movementCounter;
+  /**
+   * Owns the model when enabled, otherwise null and handlers run on the
+   * delivering thread, holding the model lock.
+   */
+  private StreetviewEventLoop eventLoop;
+
+  /**
+   * Without the event loop, held by whichever thread touches the model or
+   * broadcasts, so input handlers, timers and the scene worker take turns.
+   */
+  private final Object modelLock = new Object();
+
+  /**
+   * Parses scenes away from the input threads.
+   */
+  private ExecutorService sceneWorker;
+
+  /**
+   * Publishes input-driven POV changes at a fixed rate, or null.
+   */
+  private ScheduledFuture<?> povPublisher;
+
+  /**
+   * Time from an input device message to the pov or pano message it caused.
+   * Other broadcasts, such as refreshes and scene changes, aren't counted.
+   */
+  private final LatencyHistogram inputLatency = new LatencyHistogram();
+
+  /**
+   * Arrival of the oldest input device message not yet answered by an
+   * output, or 0.
+   */
+  private volatile long inputStartNanos;
+
+  /**
+   * Publishes statistics snapshots, or null.
+   */
+  private ScheduledFuture<?> statsPublisher;
+
+  /**
+   * Input device messages discarded because the activity wasn't activated.
+   */
+  private final AtomicLong inactiveDropped = new AtomicLong();
+
+  private boolean stateEnabled;
+
+  /**
+   * Builds and tags outgoing messages. Its origin identifies this master's own
+   * messages when they come back on the input routes.
+   */
+  private OutputFormatter output;
+
+  /**
+   * Copies of our own pov and pano broadcasts discarded on the way in.
+   */
+  private final AtomicLong echoDropped = new AtomicLong();
+
+  /**
+   * Last sequence number applied from each external origin, by route.
+   */
+  private final ConcurrentMap<String, Long> inboundSequences =
+      new ConcurrentHashMap<String, Long>();
+
+  /**
+   * External pov and pano updates discarded for being out of order.
+   */
+  private final AtomicLong staleDropped = new AtomicLong();
+
+  /**
+   * Persists the pano graph, or null.
+   */
+  private PanoGraphStore graphStore;
+  private ScheduledFuture<?> graphStoreFlusher;
+
+  private int refreshWindowMs;
+  private final AtomicBoolean refreshPending = new AtomicBoolean();
+  private volatile ScheduledFuture<?> refreshBroadcaster;
+  private final AtomicLong refreshRequests = new AtomicLong();
+  private final AtomicLong refreshBroadcasts = new AtomicLong();
+
+  /**
+   * Records input messages, or null.
+   */
+  private volatile InputRecorder recorder;
+
+  /**
+   * Set once the configured replay has started, so reactivation doesn't
+   * replay again.
+   */
+  private final AtomicBoolean replayStarted = new AtomicBoolean();
+
+  /**
+   * Message counters for each configured route.
+   */
+  private RouteMetrics inputMetrics;
+  private RouteMetrics outputMetrics;
+
+  /**
+   * Publishes status snapshots, or null.
+   */
+  private ScheduledFuture<?> statusPublisher;
+
+  private boolean headless;
+
+  /**
+   * Journals state changes, or null.
+   */
+  private StreetviewJournal journal;
+  private ScheduledFuture<?> journalFlusher;
+
+  /**
+   * Node ids of the guided walk in progress, or null.
+   */
+  private int[] walkPath;
+  private int walkIndex;
+  private ScheduledFuture<?> walkStepper;
+  private int walkStepMs;
+
+  /**
+   * Measures heading velocity for keyframes, or null.
+   */
+  private AngularVelocityTracker velocityTracker;
+  private ScheduledFuture<?> velocityPublisher;
+  private double velocityKeyframeSeconds;
+  private double velocityTolerance;
+
+  // the last keyframe, from which displays are extrapolating
+  private long keyframeNanos;
+  private double keyframeHeading;
+  private double keyframePitch;
+  private double keyframeVelocity;
+  private long keyframes;
+
+  private double povMinDelta;
+  private long povSuppressed;
+
+  // the imperceptible change the POV publisher last held back, if povHeld
+  private boolean povHeld;
+  private double heldHeading;
+  private double heldPitch;
+
+  private double lastPublishedHeading;
+  private double lastPublishedPitch;
+
+  /**
+   * Folds EV_ABS updates until the end of a processing cycle.
+   */
+  private AbsStateCoalescer absCoalescer;
+
+  /**
+   * Reads EV_ABS axes without allocating.
+   */
+  private AbsAxisDecoder absDecoder;
+
+  /**
+   * Turns axis values into heading changes and moves.
+   */
+  private AbsNavigator absNavigator;
 
   /**
    * Initialize movement state.
    */
   private void initMovement() {
-    lastMoveTime = System.currentTimeMillis();
-    movementCounter = 0;
+    absNavigator.reset(System.currentTimeMillis());
   }
 
   /**
-   * Sends incoming Ros messages to the Ros message handlers.
+   * Dispatches incoming Ros messages, recording them if recording.
    */
   @Override
   public void onNewInputJson(String channel, Map<String, Object> message) {
-    rosHandlers.handleMessage(channel, message);
+    dispatchInput(channel, message, System.nanoTime(), true);
+  }
+
+  /**
+   * Sends an incoming message to the Ros message handlers, by way of the event
+   * loop if there is one.
+   * 
+   * <p>
+   * Input device messages are discarded here, before any decoding, unless the
+   * activity is activated. Only messages that get past the inactive and echo
+   * filters are recorded, so a recording never holds our own broadcasts, which
+   * would look like external updates when replayed under a new origin.
+   * 
+   * @param receivedNanos
+   *          {@link System#nanoTime()} when the message arrived
+   * @param live
+   *          true if the message came from Ros and may be recorded, false if
+   *          it is being replayed
+   */
+  private void dispatchInput(String channel, Map<String, Object> message, long receivedNanos,
+      boolean live) {
+    // scenes are large and rare, so their size is taken on the scene worker
+    if (MESSAGE_TYPE_SCENE.equals(channel)) {
+      inputMetrics.increment(channel, RouteMetrics.MESSAGES);
+    } else {
+      inputMetrics.message(channel, message);
+    }
+
+    if (isInputDeviceRoute(channel) && !isActivated()) {
+      inactiveDropped.incrementAndGet();
+      inputMetrics.increment(channel, RouteMetrics.DROPPED);
+      return;
+    }
+
+    if (isEcho(channel, message)) {
+      echoDropped.incrementAndGet();
+      inputMetrics.increment(channel, RouteMetrics.DROPPED);
+      return;
+    }
+
+    InputRecorder r = live ? recorder : null;
+    if (r != null)
+      record(r, channel, receivedNanos, message);
+
+    if (MESSAGE_TYPE_SCENE.equals(channel)) {
+      submitScene(message);
+    } else if (eventLoop != null) {
+      eventLoop.submit(channel, message, receivedNanos);
+    } else {
+      synchronized (modelLock) {
+        handleInput(channel, message, receivedNanos);
+      }
+    }
+  }
+
+  /**
+   * Record an input message, giving up on recording if the log can't be
+   * written.
+   */
+  private void record(InputRecorder r, String channel, long nanos, Map<String, Object> message) {
+    try {
+      r.record(channel, nanos, message);
+    } catch (IOException e) {
+      getLog().error("Could not record input, recording stopped", e);
+      stopRecording();
+    }
+  }
+
+  /**
+   * Close the input recording, if any.
+   */
+  private synchronized void stopRecording() {
+    InputRecorder r = recorder;
+    recorder = null;
+
+    if (r != null) {
+      try {
+        r.close();
+        getLog().info("Recorded " + r.getMessageCount() + " input messages");
+      } catch (IOException e) {
+        getLog().error("Could not close input recording", e);
+      }
+    }
+  }
+
+  /**
+   * Replay recorded input through the normal input path, without recording it
+   * again, then log throughput and statistics. Input device events are only
+   * handled while activated, as usual, so replay starts on activation and the
+   * events dropped meanwhile are logged with the throughput.
+   * 
+   * @param file
+   *          the recorded input
+   * @param realTime
+   *          true to keep the recorded timing
+   */
+  private void replay(final File file, final boolean realTime) {
+    Thread thread = new Thread(new Runnable() {
+      public void run() {
+        InputReplayer replayer = new InputReplayer(file);
+        long inactiveBefore = inactiveDropped.get();
+
+        try {
+          replayer.replay(new InputReplayer.Sink() {
+            public void onMessage(String channel, Map<String, Object> message) {
+              dispatchInput(channel, message, System.nanoTime(), false);
+            }
+          }, realTime);
+        } catch (IOException e) {
+          getLog().error("Could not replay " + file, e);
+        } catch (InterruptedException e) {
+          getLog().warn("Replay of " + file + " interrupted");
+        }
+
+        getLog().info(
+            String.format("Replayed %d messages in %dms, %.0f msg/s, %d dropped while inactive",
+                replayer.getMessageCount(),
+                TimeUnit.NANOSECONDS.toMillis(replayer.getElapsedNanos()),
+                replayer.getThroughput(), inactiveDropped.get() - inactiveBefore));
+        getLog().info("Statistics after replay: " + getStatistics());
+      }
+    }, "streetview-master-replay");
+
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  /**
+   * @return a file named in the configuration, relative to the permanent data
+   *         directory, or null if not configured
+   */
+  private File getConfiguredFile(String property) {
+    String name = getConfiguration().getPropertyString(property, "");
+
+    if (name == null || name.trim().isEmpty())
+      return null;
+
+    File file = new File(name.trim());
+    if (!file.isAbsolute())
+      file = new File(getActivityFilesystem().getPermanentDataDirectory(), name.trim());
+
+    return file;
+  }
+
+  /**
+   * Publish a message on an output route, or only count it when headless.
+   * 
+   * @param channel
+   *          the output route
+   * @param message
+   *          the message
+   */
+  private void sendOutput(String channel, Map<String, Object> message) {
+    outputMetrics.message(channel, message);
+
+    if (!headless)
+      sendOutputJson(channel, message);
+  }
+
+  /**
+   * @return true if the channel carries input device events
+   */
+  private static boolean isInputDeviceRoute(String channel) {
+    return "EV_ABS".equals(channel) || "EV_KEY".equals(channel);
+  }
+
+  /**
+   * @return true if the message is one of our own broadcasts
+   */
+  private boolean isEcho(String channel, Map<String, Object> message) {
+    boolean stateRoute =
+        MessageTypesStreetview.MESSAGE_TYPE_STREETVIEW_POV.equals(channel)
+            || MessageTypesStreetview.MESSAGE_TYPE_STREETVIEW_PANO.equals(channel);
+
+    return stateRoute && output.getOrigin().equals(message.get(MESSAGE_FIELD_ORIGIN));
+  }
+
+  /**
+   * Check an external pov or pano update against the last one applied from
+   * the same origin on the same route. Untagged updates are always applied.
+   * 
+   * @param channel
+   *          the input route
+   * @param message
+   *          the update
+   * @return true if the update is older than one already applied
+   */
+  private boolean isStaleUpdate(String channel, Map<String, Object> message) {
+    Object origin = message.get(MESSAGE_FIELD_ORIGIN);
+    Object seq = message.get(MESSAGE_FIELD_SEQUENCE);
+
+    if (!(origin instanceof String) || !(seq instanceof Number))
+      return false;
+
+    String key = channel + " " + origin;
+    Long sequence = ((Number) seq).longValue();
+
+    while (true) {
+      Long last = inboundSequences.putIfAbsent(key, sequence);
+
+      if (last == null)
+        return false;
+
+      if (sequence <= last) {
+        staleDropped.incrementAndGet();
+        inputMetrics.increment(channel, RouteMetrics.DROPPED);
+        return true;
+      }
+
+      if (inboundSequences.replace(key, last, sequence))
+        return false;
+    }
+  }
+
+  /**
+   * Run a task on the thread that owns the model. Without the event loop the
+   * task runs immediately on the calling thread, holding the model lock.
+   */
+  private void runOnModelThread(Runnable task) {
+    if (eventLoop != null) {
+      eventLoop.execute(task);
+    } else {
+      synchronized (modelLock) {
+        task.run();
+      }
+    }
+  }
+
+  /**
+   * Dispatch an incoming message on the thread that owns the model.
+   * 
+   * @param receivedNanos
+   *          {@link System#nanoTime()} when the message arrived
+   */
+  private void handleInput(String channel, Map<String, Object> message, long receivedNanos) {
+    boolean abs = "EV_ABS".equals(channel);
+
+    // anything else may depend on the coalesced axis state, so apply it first
+    if (!abs && eventLoop != null)
+      applyAbsState();
+
+    // latency is measured from the oldest input still waiting for an output
+    if (isInputDeviceRoute(channel) && inputStartNanos == 0)
+      inputStartNanos = receivedNanos;
+
+    long start = System.nanoTime();
+
+    try {
+      if (abs && absDecoder.decode(message)) {
+        // fast path for the highest-rate route
+        if (isActivated())
+          onRosAbsAxes(absDecoder.getRz(), absDecoder.getY(), absDecoder.getRx());
+      } else {
+        rosHandlers.handleMessage(channel, message);
+      }
+    } catch (RuntimeException e) {
+      inputMetrics.increment(channel, RouteMetrics.FAILURES);
+      throw e;
+    } finally {
+      inputMetrics.add(channel, RouteMetrics.HANDLER_NANOS, System.nanoTime() - start);
+    }
+
+    if (isInputDeviceRoute(channel))
+      settleInputLatency();
+  }
+
+  /**
+   * Stop timing input on an output it caused. Only called from input-driven
+   * broadcasts, so refreshes, scenes and walks don't count as answers.
+   */
+  private void recordInputLatency() {
+    long start = inputStartNanos;
+
+    if (start != 0) {
+      inputStartNanos = 0;
+      inputLatency.record(System.nanoTime() - start);
+    }
+  }
+
+  /**
+   * Stop timing input that didn't lead to an output, unless one is still due
+   * from coalesced axes or the POV publisher.
+   */
+  private void settleInputLatency() {
+    if (inputStartNanos == 0 || absCoalescer.hasPending())
+      return;
+
+    StreetviewPov pov = model.getPov();
+    boolean povDue =
+        povPublisher != null && pov != null
+            && (pov.getHeading() != lastPublishedHeading || pov.getPitch() != lastPublishedPitch)
+            && !isHeld(pov);
+
+    if (!povDue)
+      inputStartNanos = 0;
   }
 
   /**
    * Broadcast the current point of view.
    */
   private void broadcastPov() {
-    sendOutputJsonBuilder(MessageTypesStreetview.MESSAGE_TYPE_STREETVIEW_POV, model.getPov()
-        .getJsonBuilder());
+    StreetviewPov pov = model.getPov();
+
+    sendOutput(MessageTypesStreetview.MESSAGE_TYPE_STREETVIEW_POV, output.povMessage(pov));
+
+    lastPublishedHeading = pov.getHeading();
+    lastPublishedPitch = pov.getPitch();
+
+    if (journal != null)
+      journal.recordPov(lastPublishedHeading, lastPublishedPitch);
+  }
+
+  /**
+   * Broadcast the current panorama and point of view as one message, so
+   * displays never pair a new pano with an old POV.
+   */
+  private void broadcastState() {
+    if (!stateEnabled || model.getPano() == null)
+      return;
+
+    sendOutput(MESSAGE_TYPE_STREETVIEW_STATE, output.stateMessage(model.getPano(), model.getPov()));
+  }
+
+  /**
+   * Answer a refresh request. Requests arriving within the refresh window of
+   * each other, such as when every display of a rig boots at once, share a
+   * single broadcast.
+   */
+  private void onRefreshRequest() {
+    refreshRequests.incrementAndGet();
+
+    if (refreshWindowMs <= 0) {
+      broadcastRefresh();
+      return;
+    }
+
+    if (!refreshPending.compareAndSet(false, true)) {
+      inputMetrics.increment(MessageTypesStreetview.MESSAGE_TYPE_STREETVIEW_REFRESH,
+          RouteMetrics.COALESCED);
+      return;
+    }
+
+    final Runnable refresh = new Runnable() {
+      public void run() {
+        refreshPending.set(false);
+        broadcastRefresh();
+      }
+    };
+
+    refreshBroadcaster = getSpaceEnvironment().getExecutorService().schedule(new Runnable() {
+      public void run() {
+        runOnModelThread(refresh);
+      }
+    }, refreshWindowMs, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Broadcast the complete current state in answer to refresh requests.
+   */
+  private void broadcastRefresh() {
+    refreshBroadcasts.incrementAndGet();
+
+    if (model.getPano() != null)
+      broadcastPano();
+    if (model.getPov() != null)
+      broadcastPov();
+    broadcastState();
+  }
+
+  /**
+   * Broadcast a move to a new panorama.
+   */
+  private void broadcastMove() {
+    broadcastPano();
+    broadcastState();
+  }
+
+  /**
+   * Broadcast an input-driven POV change, immediately or on the next publisher
+   * tick.
+   */
+  private void publishPov() {
+    if (povPublisher != null)
+      return;
+
+    if (isPerceptible(model.getPov())) {
+      broadcastPov();
+      recordInputLatency();
+    } else {
+      povSuppressed++;
+      outputMetrics.increment(MessageTypesStreetview.MESSAGE_TYPE_STREETVIEW_POV,
+          RouteMetrics.FILTERED);
+    }
+  }
+
+  /**
+   * Broadcast the current point of view if it changed perceptibly since the
+   * last broadcast.
+   * 
+   * <p>
+   * An imperceptible change is held back and counted once. If the point of
+   * view is still the held one on the next tick, input has gone quiet and the
+   * leftover is broadcast, so displays settle on where the input stopped.
+   */
+  private void onPovPublisherTick() {
+    StreetviewPov pov = model.getPov();
+
+    if (pov == null
+        || (pov.getHeading() == lastPublishedHeading && pov.getPitch() == lastPublishedPitch)) {
+      povHeld = false;
+      return;
+    }
+
+    if (isPerceptible(pov)) {
+      povHeld = false;
+      broadcastPov();
+      recordInputLatency();
+    } else if (isHeld(pov)) {
+      povHeld = false;
+      broadcastPov();
+    } else {
+      povHeld = true;
+      heldHeading = pov.getHeading();
+      heldPitch = pov.getPitch();
+
+      // nothing will answer the input behind a held change
+      inputStartNanos = 0;
+
+      povSuppressed++;
+      outputMetrics.increment(MessageTypesStreetview.MESSAGE_TYPE_STREETVIEW_POV,
+          RouteMetrics.FILTERED);
+    }
+  }
+
+  /**
+   * @return true if the point of view is the change the publisher held back
+   */
+  private boolean isHeld(StreetviewPov pov) {
+    return povHeld && pov.getHeading() == heldHeading && pov.getPitch() == heldPitch;
+  }
+
+  /**
+   * @return true if the point of view moved at least the minimum delta since
+   *         the last broadcast
+   */
+  private boolean isPerceptible(StreetviewPov pov) {
+    if (povMinDelta <= 0)
+      return true;
+
+    double heading = Math.abs(pov.getHeading() - lastPublishedHeading) % 360;
+    if (heading > 180)
+      heading = 360 - heading;
+
+    double pitch = Math.abs(pov.getPitch() - lastPublishedPitch);
+
+    return heading >= povMinDelta || pitch >= povMinDelta;
+  }
+
+  /**
+   * Measure heading velocity, and send a keyframe if displays extrapolating
+   * from the last one have drifted, if the velocity has changed enough to make
+   * them drift, or if a keyframe is due while turning.
+   */
+  private void onVelocityTick() {
+    StreetviewPov pov = model.getPov();
+    long now = System.nanoTime();
+    double velocity = velocityTracker.sample(now);
+    double elapsed = (now - keyframeNanos) / (double) TimeUnit.SECONDS.toNanos(1);
+
+    double predicted = keyframeHeading + keyframeVelocity * elapsed;
+    double drift = Math.abs(pov.getHeading() - predicted) % 360;
+    if (drift > 180)
+      drift = 360 - drift;
+    drift += Math.abs(pov.getPitch() - keyframePitch);
+
+    boolean velocityChanged =
+        Math.abs(velocity - keyframeVelocity) * velocityKeyframeSeconds > velocityTolerance;
+    boolean due =
+        (velocity != 0 || keyframeVelocity != 0) && elapsed >= velocityKeyframeSeconds;
+
+    if (drift > velocityTolerance || velocityChanged || due) {
+      broadcastVelocity(pov, velocity, now);
+    }
+  }
+
+  /**
+   * Broadcast a POV keyframe with heading velocity.
+   */
+  private void broadcastVelocity(StreetviewPov pov, double velocity, long nowNanos) {
+    JsonBuilder json = output.quantize(pov, new JsonBuilder());
+    json.put("velocity", velocity);
+
+    sendOutput(MESSAGE_TYPE_STREETVIEW_VELOCITY, output.tag(json));
+
+    keyframeNanos = nowNanos;
+    keyframeHeading = pov.getHeading();
+    keyframePitch = pov.getPitch();
+    keyframeVelocity = velocity;
+    keyframes++;
   }
 
   /**
    * Broadcast the current panorama.
    */
   private void broadcastPano() {
-    sendOutputJsonBuilder(MessageTypesStreetview.MESSAGE_TYPE_STREETVIEW_PANO, model.getPano()
-        .getJsonBuilder());
+    sendOutput(MessageTypesStreetview.MESSAGE_TYPE_STREETVIEW_PANO,
+        output.panoMessage(model.getPano()));
+
+    if (journal != null)
+      journal.recordPano(model.getPano().getPanoid());
 
     initMovement(); // reset movement state on pano change
   }
 
-  /**
-   * Initialize state, register message handlers.
-   */
-  @Override
-  public void onActivitySetup() {
-    model = new StreetviewModel();
+  /**
+   * Initialize state, register message handlers.
+   */
+  @Override
+  public void onActivitySetup() {
+    model =
+        new StreetviewModel(new StreetviewLinkCache(getConfiguration().getPropertyInteger(
+            CONFIG_LINK_CACHE_SIZE, StreetviewModel.DEFAULT_LINK_CACHE_SIZE)), new PanoGraph(
+            getConfiguration().getPropertyInteger(CONFIG_GRAPH_MAX_NODES,
+                StreetviewModel.DEFAULT_GRAPH_MAX_NODES)), getConfiguration().getPropertyBoolean(
+            CONFIG_GRAPH_LINKS_ENABLED, false));
+
+    if (getConfiguration().getPropertyBoolean(CONFIG_GRAPH_STORE_ENABLED, false))
+      openGraphStore();
+
+    if (getConfiguration().getPropertyBoolean(CONFIG_JOURNAL_ENABLED, false))
+      openJournal();
+
+    absCoalescer = new AbsStateCoalescer();
+    absDecoder = new AbsAxisDecoder();
+    absNavigator = new AbsNavigator(model);
+
+    initMovement();
+
+    stateEnabled = getConfiguration().getPropertyBoolean(CONFIG_STATE_ENABLED, false);
+    headless = getConfiguration().getPropertyBoolean(CONFIG_HEADLESS, false);
+
+    inputMetrics = new RouteMetrics(getConfiguredRoutes(CONFIG_ROUTES_INPUTS));
+    outputMetrics = new RouteMetrics(getConfiguredRoutes(CONFIG_ROUTES_OUTPUTS));
+
+    File recordFile = getConfiguredFile(CONFIG_RECORD_FILE);
+    if (recordFile != null) {
+      try {
+        recorder = new InputRecorder(recordFile);
+        getLog().info("Recording input to " + recordFile);
+      } catch (IOException e) {
+        getLog().error("Could not record input to " + recordFile, e);
+      }
+    }
+    output =
+        new OutputFormatter(UUID.randomUUID().toString(), getConfiguration()
+            .getPropertyInteger(CONFIG_POV_PRECISION, -1));
+    povMinDelta = getConfiguration().getPropertyDouble(CONFIG_POV_MIN_DELTA, 0.0);
+
+    refreshWindowMs = getConfiguration().getPropertyInteger(CONFIG_REFRESH_WINDOW_MS, 0);
+    walkStepMs =
+        getConfiguration().getPropertyInteger(CONFIG_NAVIGATE_STEP_MS, DEFAULT_NAVIGATE_STEP_MS);
+
+    if (getConfiguration().getPropertyBoolean(CONFIG_EVENT_LOOP_ENABLED, false)) {
+      eventLoop =
+          new StreetviewEventLoop("streetview-master-loop", new StreetviewEventLoop.Handler() {
+            public void handleMessage(String channel, Map<String, Object> message,
+                long receivedNanos) {
+              handleInput(channel, message, receivedNanos);
+            }
 
-    initMovement();
+            public void onBatchEnd() {
+              applyAbsState();
+            }
+          }, getLog());
+    }
 
     rosHandlers = new RosMessageHandlers(getLog());
 
@@ -136,7 +1080,12 @@ public class StreetviewMasterActivity extends BaseRoutableRosActivity {
     rosHandlers.registerHandler(MessageTypesStreetview.MESSAGE_TYPE_STREETVIEW_LINKS,
         new RosMessageHandler() {
           public void handleMessage(JsonNavigator json) {
-            model.setLinks(new StreetviewLinks(json));
+            Object panoid = json.getRoot().get(MESSAGE_FIELD_LINKS_PANOID);
+
+            if (!model.setLinks(new StreetviewLinks(json), panoid instanceof String
+                ? (String) panoid : null))
+              inputMetrics.increment(MessageTypesStreetview.MESSAGE_TYPE_STREETVIEW_LINKS,
+                  RouteMetrics.FILTERED);
           }
         });
 
@@ -144,7 +1093,15 @@ public class StreetviewMasterActivity extends BaseRoutableRosActivity {
     rosHandlers.registerHandler(MessageTypesStreetview.MESSAGE_TYPE_STREETVIEW_POV,
         new RosMessageHandler() {
           public void handleMessage(JsonNavigator json) {
-            model.setPov(new StreetviewPov(json));
+            if (isStaleUpdate(MessageTypesStreetview.MESSAGE_TYPE_STREETVIEW_POV,
+                json.getRoot()))
+              return;
+
+            StreetviewPov pov = new StreetviewPov(json);
+            model.setPov(pov);
+
+            if (journal != null)
+              journal.recordPov(pov.getHeading(), pov.getPitch());
           }
         });
 
@@ -152,21 +1109,39 @@ public class StreetviewMasterActivity extends BaseRoutableRosActivity {
     rosHandlers.registerHandler(MessageTypesStreetview.MESSAGE_TYPE_STREETVIEW_PANO,
         new RosMessageHandler() {
           public void handleMessage(JsonNavigator json) {
-            model.setPano(new StreetviewPano(json));
+            if (isStaleUpdate(MessageTypesStreetview.MESSAGE_TYPE_STREETVIEW_PANO,
+                json.getRoot()))
+              return;
+
+            if (model.setPano(new StreetviewPano(json)) && journal != null)
+              journal.recordPano(model.getPano().getPanoid());
           }
         });
 
+    // handle guided walk requests
+    rosHandlers.registerHandler(MESSAGE_TYPE_STREETVIEW_NAVIGATE, new RosMessageHandler() {
+      public void handleMessage(JsonNavigator json) {
+        String panoid = json.getString("panoid");
+
+        if (panoid != null)
+          startWalk(panoid);
+      }
+    });
+
     // handle refresh requests
     rosHandlers.registerHandler(MessageTypesStreetview.MESSAGE_TYPE_STREETVIEW_REFRESH,
         new RosMessageHandler() {
           public void handleMessage(JsonNavigator json) {
-            if (model.getPano() != null)
-              broadcastPano();
-            if (model.getPov() != null)
-              broadcastPov();
+            onRefreshRequest();
           }
         });
 
+    rosHandlers.registerHandler(MESSAGE_TYPE_STREETVIEW_STATS_REQUEST, new RosMessageHandler() {
+      public void handleMessage(JsonNavigator json) {
+        publishStatistics(true);
+      }
+    });
+
     // handle button events, if activated
     rosHandlers.registerHandler("EV_KEY", new RosMessageHandler() {
       public void handleMessage(JsonNavigator json) {
@@ -175,7 +1150,8 @@ public class StreetviewMasterActivity extends BaseRoutableRosActivity {
       }
     });
 
-    // handle absolute axis state changes, if activated
+    // handle absolute axis state changes the decoder couldn't read, if
+    // activated
     rosHandlers.registerHandler("EV_ABS", new RosMessageHandler() {
       public void handleMessage(JsonNavigator json) {
         if (isActivated())
@@ -183,55 +1159,434 @@ public class StreetviewMasterActivity extends BaseRoutableRosActivity {
       }
     });
 
-    // handle scene changes regardless of activation
-    rosHandlers.registerHandler("scene", new RosMessageHandler() {
-      public void handleMessage(JsonNavigator json) {
-        Scene scene;
-        String jsonStr = JsonMapper.INSTANCE.toString(json.getRoot());
+    // scenes are handled regardless of activation, see submitScene()
+    sceneWorker = Executors.newSingleThreadExecutor(new ThreadFactory() {
+      public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, "streetview-master-scene");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+
+    if (eventLoop != null)
+      eventLoop.start();
+
+    int povPublishHz = getConfiguration().getPropertyInteger(CONFIG_POV_PUBLISH_HZ, 0);
+
+    if (povPublishHz > 0) {
+      final Runnable tick = new Runnable() {
+        public void run() {
+          onPovPublisherTick();
+        }
+      };
+      long period = TimeUnit.SECONDS.toMicros(1) / povPublishHz;
+
+      povPublisher =
+          getSpaceEnvironment().getExecutorService().scheduleAtFixedRate(new Runnable() {
+            public void run() {
+              runOnModelThread(tick);
+            }
+          }, period, period, TimeUnit.MICROSECONDS);
+    }
+
+    if (getConfiguration().getPropertyBoolean(CONFIG_VELOCITY_ENABLED, false))
+      startVelocityPublisher();
+
+    int statsIntervalMs = getConfiguration().getPropertyInteger(CONFIG_STATS_INTERVAL_MS, 0);
+
+    if (statsIntervalMs > 0) {
+      final Runnable publish = new Runnable() {
+        public void run() {
+          publishStatistics(false);
+        }
+      };
+
+      statsPublisher =
+          getSpaceEnvironment().getExecutorService().scheduleAtFixedRate(new Runnable() {
+            public void run() {
+              runOnModelThread(publish);
+            }
+          }, statsIntervalMs, statsIntervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    int statusIntervalMs =
+        getConfiguration().getPropertyInteger(CONFIG_STATUS_INTERVAL_MS,
+            DEFAULT_STATUS_INTERVAL_MS);
+
+    if (statusIntervalMs > 0) {
+      statusPublisher =
+          getSpaceEnvironment().getExecutorService().scheduleAtFixedRate(new Runnable() {
+            public void run() {
+              publishStatus();
+            }
+          }, statusIntervalMs, statusIntervalMs, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  /**
+   * Publish a snapshot of the per-route counters on the status route.
+   */
+  private void publishStatus() {
+    Map<String, Object> status = new LinkedHashMap<String, Object>();
+    status.put(MESSAGE_FIELD_ORIGIN, output.getOrigin());
+    status.put(MESSAGE_FIELD_TIME, output.monotonicTimeMillis());
+    status.put("inputs", inputMetrics.snapshot());
+    status.put("outputs", outputMetrics.snapshot());
+
+    sendOutput(MESSAGE_TYPE_STREETVIEW_STATUS, status);
+  }
+
+  /**
+   * @return the routes named in a colon separated route list property
+   */
+  private List<String> getConfiguredRoutes(String property) {
+    List<String> routes = new ArrayList<String>();
+
+    for (String route : getConfiguration().getPropertyString(property, "").split(":")) {
+      if (!route.trim().isEmpty())
+        routes.add(route.trim());
+    }
+
+    return routes;
+  }
+
+  /**
+   * Publish a statistics snapshot on the stats route.
+   * 
+   * @param log
+   *          true to also log the snapshot
+   */
+  private void publishStatistics(boolean log) {
+    Map<String, Object> stats = getStatistics();
+
+    if (log)
+      getLog().info("Street View master statistics: " + stats);
+
+    sendOutput(MESSAGE_TYPE_STREETVIEW_STATS, stats);
+  }
+
+  /**
+   * Start measuring heading velocity and publishing keyframes.
+   */
+  private void startVelocityPublisher() {
+    int sampleHz = getConfiguration().getPropertyInteger(CONFIG_VELOCITY_SAMPLE_HZ, 30);
+    velocityKeyframeSeconds =
+        getConfiguration().getPropertyInteger(CONFIG_VELOCITY_KEYFRAME_MS, 500) / 1000.0;
+    velocityTolerance = getConfiguration().getPropertyDouble(CONFIG_VELOCITY_TOLERANCE, 1.0);
+
+    keyframeNanos = System.nanoTime();
+    velocityTracker = new AngularVelocityTracker(keyframeNanos);
+
+    final Runnable tick = new Runnable() {
+      public void run() {
+        onVelocityTick();
+      }
+    };
+    long period = TimeUnit.SECONDS.toMicros(1) / sampleHz;
+
+    velocityPublisher =
+        getSpaceEnvironment().getExecutorService().scheduleAtFixedRate(new Runnable() {
+          public void run() {
+            runOnModelThread(tick);
+          }
+        }, period, period, TimeUnit.MICROSECONDS);
+  }
+
+  /**
+   * Parse a scene on the scene worker, then hand its location to the model
+   * thread as a single state change. Large scenes therefore never hold up
+   * input handling.
+   * 
+   * @param message
+   *          the scene message
+   */
+  private void submitScene(final Map<String, Object> message) {
+    sceneWorker.execute(new Runnable() {
+      public void run() {
+        inputMetrics.add(MESSAGE_TYPE_SCENE, RouteMetrics.BYTES,
+            RouteMetrics.estimateBytes(message));
+
+        final StreetviewScene scene;
+        long start = System.nanoTime();
 
         try {
-          scene = Scene.fromJson(jsonStr);
-        } catch (IOException e) {
+          scene = StreetviewScene.fromMessage(message);
+        } catch (NumberFormatException e) {
+          inputMetrics.increment(MESSAGE_TYPE_SCENE, RouteMetrics.FAILURES);
           getLog().error("Error while parsing scene message");
           getLog().error(e.getMessage());
           return;
+        } finally {
+          inputMetrics.add(MESSAGE_TYPE_SCENE, RouteMetrics.HANDLER_NANOS, System.nanoTime()
+              - start);
+        }
+
+        if (scene == null) {
+          inputMetrics.increment(MESSAGE_TYPE_SCENE, RouteMetrics.FILTERED);
+          return;
         }
 
-        for (Window w : scene.windows) {
-          if (w.activity.equals("streetview")) {
-            getLog().info("Street View scene");
+        getLog().info("Street View scene");
 
-            String field = w.assets[0];
-            String[] parts;
+        runOnModelThread(new Runnable() {
+          public void run() {
+            onScene(scene);
+          }
+        });
+      }
+    });
+  }
 
-            if (field.contains(SCENE_FIELD_SEPARATOR)) {
-              parts = field.split(SCENE_FIELD_SEPARATOR, 3);
-            } else {
-              parts = new String[] { field };
-            }
+  /**
+   * Move to the location of a Street View scene.
+   * 
+   * @param scene
+   *          the scene location
+   */
+  private void onScene(StreetviewScene scene) {
+    cancelWalk();
 
-            String panoid = parts[0];
-            getLog().info("Setting pano to " + panoid);
-            model.setPano(new StreetviewPano(panoid));
-            broadcastPano();
+    String panoid = scene.getPanoid();
+    getLog().info("Setting pano to " + panoid);
+    model.setPano(new StreetviewPano(panoid));
+    broadcastPano();
 
-            Double x = model.getPov().getHeading(), y = model.getPov().getPitch();
+    double x = model.getPov().getHeading(), y = model.getPov().getPitch();
 
-            if (parts.length > 1) {
-              x = Double.parseDouble(parts[1]);
-            }
-            if (parts.length > 2) {
-              y = Double.parseDouble(parts[1]);
+    if (scene.getHeading() != null) {
+      x = scene.getHeading();
+    }
+    if (scene.getPitch() != null) {
+      y = scene.getPitch();
+    }
+
+    model.setPov(new StreetviewPov(x, y));
+    broadcastPov();
+    broadcastState();
+  }
+
+  /**
+   * Restore the journaled state into the model and start journaling changes.
+   */
+  private void openJournal() {
+    File file = new File(getActivityFilesystem().getPermanentDataDirectory(), JOURNAL_FILE);
+
+    try {
+      long start = System.nanoTime();
+
+      journal = new StreetviewJournal(file);
+      StreetviewJournal.State state = journal.getRecoveredState();
+
+      if (state.getPanoid() != null)
+        model.setPano(new StreetviewPano(state.getPanoid()));
+      if (state.hasPov())
+        model.setPov(new StreetviewPov(state.getHeading(), state.getPitch()));
+
+      getLog().info(
+          "Recovered pano " + state.getPanoid() + " from " + state.getRecordCount()
+              + " journal records in " + TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start)
+              + "us");
+
+      if (state.getDiscardedBytes() > 0)
+        getLog().warn(
+            "Discarded " + state.getDiscardedBytes()
+                + " bytes of torn or invalid journal records");
+    } catch (IOException e) {
+      getLog().error("Could not open state journal " + file, e);
+      return;
+    }
+
+    int flushMs =
+        getConfiguration().getPropertyInteger(CONFIG_JOURNAL_FLUSH_MS, DEFAULT_JOURNAL_FLUSH_MS);
+
+    journalFlusher =
+        getSpaceEnvironment().getExecutorService().scheduleWithFixedDelay(new Runnable() {
+          public void run() {
+            try {
+              journal.flush();
+            } catch (IOException e) {
+              getLog().error("Could not write state journal", e);
             }
+          }
+        }, flushMs, flushMs, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Write out pending state changes and close the journal.
+   */
+  private void closeJournal() {
+    if (journalFlusher != null) {
+      journalFlusher.cancel(false);
+      journalFlusher = null;
+    }
 
-            model.setPov(new StreetviewPov(x, y));
-            broadcastPov();
+    if (journal != null) {
+      try {
+        journal.close();
+      } catch (IOException e) {
+        getLog().error("Could not close state journal", e);
+      }
+
+      journal = null;
+    }
+  }
+
+  /**
+   * Load the stored pano graph and start appending new edges to it.
+   */
+  private void openGraphStore() {
+    File file = new File(getActivityFilesystem().getPermanentDataDirectory(), GRAPH_STORE_FILE);
+    PanoGraph graph = model.getGraph();
+
+    try {
+      long start = System.nanoTime();
 
-            break;
+      graphStore = new PanoGraphStore(file);
+      long loaded = graphStore.load(graph);
+
+      getLog().info(
+          "Loaded " + loaded + " pano graph edges in "
+              + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + "ms");
+
+      if (graphStore.getDiscardedCount() > 0)
+        getLog().warn(
+            "Discarded " + graphStore.getDiscardedCount() + " pano graph records from the first"
+                + " corrupt one");
+    } catch (IOException e) {
+      getLog().error("Could not open pano graph store " + file, e);
+      closeGraphStore();
+      return;
+    }
+
+    graph.setEdgeListener(graphStore);
+
+    graphStoreFlusher =
+        getSpaceEnvironment().getExecutorService().scheduleWithFixedDelay(new Runnable() {
+          public void run() {
+            try {
+              graphStore.flush();
+            } catch (IOException e) {
+              getLog().error("Could not write pano graph store", e);
+            }
           }
-        }
+        }, GRAPH_STORE_FLUSH_MS, GRAPH_STORE_FLUSH_MS, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Write out pending graph edges and close the store.
+   */
+  private void closeGraphStore() {
+    if (graphStoreFlusher != null) {
+      graphStoreFlusher.cancel(false);
+      graphStoreFlusher = null;
+    }
+
+    if (graphStore != null) {
+      model.getGraph().setEdgeListener(null);
+
+      try {
+        graphStore.close();
+      } catch (IOException e) {
+        getLog().error("Could not close pano graph store", e);
       }
-    });
+
+      graphStore = null;
+    }
+  }
+
+  /**
+   * Start a guided walk from the current pano to a target pano, along the
+   * shortest path through the panos seen so far. Any walk in progress is
+   * cancelled.
+   * 
+   * @param panoid
+   *          the target panoid
+   */
+  private void startWalk(String panoid) {
+    cancelWalk();
+
+    if (model.getPano() == null) {
+      getLog().warn("Can't navigate to " + panoid + " without a current pano");
+      return;
+    }
+
+    PanoGraph graph = model.getGraph();
+    long start = System.nanoTime();
+    int[] path = graph.findPath(graph.indexOf(model.getPano().getPanoid()), graph.indexOf(panoid));
+    long elapsed = System.nanoTime() - start;
+
+    if (path == null) {
+      getLog().warn("No known route to " + panoid);
+      return;
+    }
+
+    getLog().info(
+        "Navigating to " + panoid + " in " + (path.length - 1) + " steps, found in "
+            + TimeUnit.NANOSECONDS.toMicros(elapsed) + "us");
+
+    walkPath = path;
+    walkIndex = 1;
+
+    final Runnable step = new Runnable() {
+      public void run() {
+        onWalkStep();
+      }
+    };
+
+    walkStepper = getSpaceEnvironment().getExecutorService().scheduleAtFixedRate(new Runnable() {
+      public void run() {
+        runOnModelThread(step);
+      }
+    }, 0, walkStepMs, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Take the next step of the guided walk, facing the direction of travel.
+   */
+  private void onWalkStep() {
+    int[] path = walkPath;
+
+    if (path == null)
+      return;
+
+    PanoGraph graph = model.getGraph();
+    int from = path[walkIndex - 1];
+
+    // somebody else moved us off the path
+    if (!graph.getPanoid(from).equals(model.getPano().getPanoid())) {
+      cancelWalk();
+      return;
+    }
+
+    if (walkIndex >= path.length) {
+      cancelWalk();
+      return;
+    }
+
+    int to = path[walkIndex++];
+    int edge = graph.getEdge(from, to);
+
+    model.setPano(new StreetviewPano(graph.getPanoid(to)));
+    broadcastPano();
+
+    if (edge != PanoGraph.NONE) {
+      model.setPov(new StreetviewPov(graph.getEdgeHeading(edge), model.getPov().getPitch()));
+      broadcastPov();
+    }
+
+    broadcastState();
+  }
+
+  /**
+   * Stop the guided walk in progress, if any.
+   */
+  private void cancelWalk() {
+    if (walkStepper != null) {
+      walkStepper.cancel(false);
+      walkStepper = null;
+    }
+
+    walkPath = null;
   }
 
   /**
@@ -242,12 +1597,16 @@ public class StreetviewMasterActivity extends BaseRoutableRosActivity {
    */
   private void onRosKeyEvent(InputKeyEvent event) {
     if (event.getValue() > 0) {
+      cancelWalk();
+
       if (event.getCode() == InputEventCodes.BTN_1 && model.moveForward()) {
-        broadcastPano();
+        broadcastMove();
+        recordInputLatency();
       }
 
       if (event.getCode() == InputEventCodes.BTN_0 && model.moveBackward()) {
-        broadcastPano();
+        broadcastMove();
+        recordInputLatency();
       }
     }
   }
@@ -259,45 +1618,234 @@ public class StreetviewMasterActivity extends BaseRoutableRosActivity {
    *          the axis state
    */
   private void onRosAbsStateChange(InputAbsState state) {
-    double yaw = state.getValue(InputEventCodes.ABS_RZ) * INPUT_SENSITIVITY;
+    onRosAbsAxes(state.getValue(InputEventCodes.ABS_RZ), state.getValue(InputEventCodes.ABS_Y),
+        state.getValue(InputEventCodes.ABS_RX));
+  }
+
+  /**
+   * Handle the navigation axes of an EV_ABS state update.
+   * 
+   * <p>
+   * With the event loop, updates are folded together and applied once per
+   * processing cycle. Otherwise each update is applied immediately, without
+   * going through the coalescer.
+   * 
+   * @param rz
+   *          the ABS_RZ value
+   * @param y
+   *          the ABS_Y value
+   * @param rx
+   *          the ABS_RX value
+   */
+  private void onRosAbsAxes(int rz, int y, int rx) {
+    if (walkPath != null && (rz != 0 || y != 0 || rx != 0))
+      cancelWalk();
 
-    if (yaw != 0) {
-      model.getPov().translate(yaw, 0);
+    double yaw = AbsNavigator.yawOf(rz);
+    int direction = AbsNavigator.directionOf(y, rx);
 
-      broadcastPov();
+    if (eventLoop == null) {
+      applyAxes(yaw, absNavigator.push(direction));
+      return;
     }
 
-    long currentTime = System.currentTimeMillis();
+    if (absCoalescer.hasPending())
+      inputMetrics.increment("EV_ABS", RouteMetrics.COALESCED);
+
+    absCoalescer.add(yaw, direction, System.currentTimeMillis());
+  }
 
-    // movement can be either forwards or backwards, depending on whether the
-    // SpaceNav is moved+tilted forwards or backwards.
-    // TODO: Movement in all directions.
-    double movement =
-        -INPUT_SENSITIVITY
-            * ((state.getValue(InputEventCodes.ABS_Y) + state.getValue(InputEventCodes.ABS_RX)));
+  /**
+   * Apply any pending coalesced EV_ABS updates to the model. Only used with
+   * the event loop, on the loop thread.
+   */
+  private void applyAbsState() {
+    if (!absCoalescer.hasPending())
+      return;
 
-    if (movement > INPUT_MOVEMENT_THRESHOLD) {
-      movementCounter++;
-    } else if (movement < -INPUT_MOVEMENT_THRESHOLD) {
-      movementCounter--;
-    } else {
-      movementCounter = 0;
+    applyTurn(absCoalescer.getYaw());
+    boolean moved = absCoalescer.applyMovement(absNavigator);
+    absCoalescer.clear();
+
+    onAxesApplied(moved);
+  }
+
+  /**
+   * Apply a heading change and movement push to the model.
+   * 
+   * @param yaw
+   *          heading change, in degrees
+   * @param counter
+   *          the new movement counter value
+   */
+  private void applyAxes(double yaw, int counter) {
+    applyTurn(yaw);
+    onAxesApplied(absNavigator.move(counter, System.currentTimeMillis()));
+  }
+
+  /**
+   * Turn the point of view and publish the change.
+   * 
+   * @param yaw
+   *          heading change, in degrees
+   */
+  private void applyTurn(double yaw) {
+    if (absNavigator.turn(yaw)) {
+      if (velocityTracker != null)
+        velocityTracker.addYaw(yaw);
+
+      publishPov();
     }
+  }
 
-    if ((currentTime - lastMoveTime) < INPUT_MOVEMENT_COOLDOWN) {
-      movementCounter = 0;
-    } else if (movementCounter > INPUT_MOVEMENT_COUNT && model.moveForward()) {
-      broadcastPano();
-    } else if (movementCounter < -INPUT_MOVEMENT_COUNT && model.moveBackward()) {
-      broadcastPano();
+  /**
+   * Broadcast a move caused by axis input, if any, and settle input timing.
+   * 
+   * @param moved
+   *          true if the pano changed
+   */
+  private void onAxesApplied(boolean moved) {
+    if (moved) {
+      broadcastMove();
+      recordInputLatency();
     }
+
+    settleInputLatency();
+  }
+
+  /**
+   * Broadcast any state recovered from the journal, so displays don't wait for
+   * the next scene.
+   */
+  @Override
+  public void onActivityStartup() {
+    runOnModelThread(new Runnable() {
+      public void run() {
+        if (model.getPano() != null) {
+          broadcastPano();
+          broadcastPov();
+          broadcastState();
+        }
+      }
+    });
   }
 
   /**
-   * Re-initialize movement state on activation.
+   * Re-initialize movement state on activation, and start any configured
+   * replay on the first activation.
    */
   @Override
   public void onActivityActivate() {
     initMovement();
+
+    File replayFile = getConfiguredFile(CONFIG_REPLAY_FILE);
+    if (replayFile != null && replayStarted.compareAndSet(false, true))
+      replay(replayFile, getConfiguration().getPropertyBoolean(CONFIG_REPLAY_REALTIME, false));
+  }
+
+  /**
+   * Stop the POV publishers, scene worker and event loop, and log final
+   * statistics.
+   */
+  @Override
+  public void onActivityShutdown() {
+    if (povPublisher != null) {
+      povPublisher.cancel(false);
+    }
+
+    if (velocityPublisher != null) {
+      velocityPublisher.cancel(false);
+    }
+
+    if (statsPublisher != null) {
+      statsPublisher.cancel(false);
+    }
+
+    if (statusPublisher != null) {
+      statusPublisher.cancel(false);
+    }
+
+    if (refreshBroadcaster != null) {
+      refreshBroadcaster.cancel(false);
+    }
+
+    cancelWalk();
+
+    if (sceneWorker != null) {
+      sceneWorker.shutdownNow();
+    }
+
+    if (eventLoop != null) {
+      eventLoop.stop();
+    }
+
+    closeGraphStore();
+    closeJournal();
+    stopRecording();
+
+    getLog().info("Street View master statistics: " + getStatistics());
+  }
+
+  /**
+   * Collect runtime statistics.
+   * 
+   * @return a snapshot of counters, by name
+   */
+  public Map<String, Object> getStatistics() {
+    Map<String, Object> stats = new LinkedHashMap<String, Object>();
+
+    if (eventLoop != null) {
+      stats.put("loop.depth", eventLoop.getQueueDepth());
+      stats.put("loop.depth.max", eventLoop.getMaxQueueDepth());
+      stats.put("loop.handled", eventLoop.getHandledCount());
+      stats.put("loop.queue.mean.ns", eventLoop.getMeanQueueNanos());
+      stats.put("loop.handler.mean.ns", eventLoop.getMeanHandlerNanos());
+      stats.put("loop.handler.max.ns", eventLoop.getMaxHandlerNanos());
+    }
+
+    for (String output : outputMetrics.getRoutes()) {
+      stats.put("output." + output + ".sent", outputMetrics.get(output, RouteMetrics.MESSAGES));
+    }
+
+    stats.put("latency.count", inputLatency.getCount());
+    stats.put("latency.p50.ns", inputLatency.getPercentile(0.5));
+    stats.put("latency.p99.ns", inputLatency.getPercentile(0.99));
+    stats.put("latency.p999.ns", inputLatency.getPercentile(0.999));
+    stats.put("latency.max.ns", inputLatency.getMax());
+
+    stats.put("input.inactive.dropped", inactiveDropped.get());
+    stats.put("input.echo.dropped", echoDropped.get());
+    stats.put("input.stale.dropped", staleDropped.get());
+    stats.put("abs.coalesced", absCoalescer.getCoalescedCount());
+    stats.put("pov.suppressed", povSuppressed);
+    stats.put("velocity.keyframes", keyframes);
+    stats.put("refresh.requests", refreshRequests.get());
+    stats.put("refresh.broadcasts", refreshBroadcasts.get());
+
+    stats.put("links.stale", model.getStaleLinks());
+
+    StreetviewLinkCache linkCache = model.getLinkCache();
+    stats.put("links.cache.size", linkCache.size());
+    stats.put("links.cache.hits", linkCache.getHits());
+    stats.put("links.cache.misses", linkCache.getMisses());
+    stats.put("links.cache.evictions", linkCache.getEvictions());
+
+    PanoGraph graph = model.getGraph();
+    stats.put("graph.nodes", graph.getNodeCount());
+    stats.put("graph.edges", graph.getEdgeCount());
+
+    StreetviewJournal j = journal;
+    if (j != null) {
+      stats.put("journal.records", j.getRecordCount());
+      stats.put("journal.snapshots", j.getSnapshotCount());
+    }
+
+    PanoGraphStore store = graphStore;
+    if (store != null) {
+      stats.put("graph.store.records", store.getRecordCount());
+      stats.put("graph.store.skipped", store.getSkippedCount());
+    }
+
+    return stats;
   }
 }
\ No newline at end of file
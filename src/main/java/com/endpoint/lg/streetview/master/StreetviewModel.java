@@ -23,6 +23,8 @@ import com.endpoint.lg.support.domain.streetview.StreetviewLinks;
 import com.endpoint.lg.support.domain.streetview.StreetviewPano;
 import com.endpoint.lg.support.domain.streetview.StreetviewPov;
 
+import java.util.List;
+
 /**
  * A model representing the Street View state.
  * 
@@ -31,15 +33,51 @@ import com.endpoint.lg.support.domain.streetview.StreetviewPov;
  * is changed, the links are marked dirty and remain dirty until set. This helps
  * prevent navigation to stale links.
  * 
+ * <p>
+ * Links are only accepted for the current pano. Links which belong to another
+ * pano, typically the previous one delivered late by a slow browser, are
+ * cached but never used for navigation from the current pano.
+ * 
+ * <p>
+ * Links are also remembered per pano, so returning to a recently visited pano
+ * restores its links immediately instead of waiting for the browser. Every
+ * accepted links update also replaces its pano's edges in a {@link PanoGraph}.
+ * Optionally, the graph serves as a fallback for panos which have dropped out
+ * of the link cache; otherwise such panos wait for the browser as usual.
+ * 
  * @author Matt Vollrath <matt@endpoint.com>
  */
 public class StreetviewModel {
+
+  /**
+   * Default number of panos whose links are remembered.
+   */
+  public static final int DEFAULT_LINK_CACHE_SIZE = 1024;
+
+  /**
+   * Default number of panos held in the graph.
+   */
+  public static final int DEFAULT_GRAPH_MAX_NODES = 500000;
+
+  private final StreetviewLinkCache linkCache;
+  private final PanoGraph graph;
+  private final boolean graphLinks;
+
   private StreetviewPano pano;
   private StreetviewPov pov;
   private StreetviewLinks links;
+  private LinkHeadingTable linkTable = LinkHeadingTable.EMPTY;
 
   private boolean linksDirty;
 
+  // the pano before the current one and its links, if known, and whether
+  // links have arrived for the current pano since it changed
+  private String previousPanoid;
+  private StreetviewLinks previousLinks;
+  private boolean linksReceived;
+
+  private long staleLinks;
+
   public StreetviewPano getPano() {
     return pano;
   }
@@ -53,8 +91,27 @@ public class StreetviewModel {
    */
   public boolean setPano(StreetviewPano pano) {
     if (this.pano == null || !this.pano.equals(pano)) {
+      previousPanoid = this.pano != null ? this.pano.getPanoid() : null;
+      previousLinks = linksDirty ? null : links;
+      linksReceived = false;
       this.pano = pano;
-      linksDirty = true;
+
+      String panoid = pano.getPanoid();
+      StreetviewLinks cached = linkCache.get(panoid);
+      LinkHeadingTable known;
+
+      if (cached != null) {
+        links = cached;
+        linkTable = LinkHeadingTable.fromLinks(cached);
+        linksDirty = false;
+      } else if (graphLinks && (known = graph.getHeadingTable(panoid)) != null) {
+        links = null;
+        linkTable = known;
+        linksDirty = false;
+      } else {
+        linksDirty = true;
+      }
+
       return true;
     }
 
@@ -69,16 +126,158 @@ public class StreetviewModel {
     this.pov = pov;
   }
 
+  /**
+   * Turn the current point of view.
+   * 
+   * @param yaw
+   *          change in heading
+   * @param pitch
+   *          change in pitch
+   */
+  public void translatePov(double yaw, double pitch) {
+    pov.translate(yaw, pitch);
+  }
+
+  /**
+   * @return the links of the current pano, or null if they were restored from
+   *         the graph
+   */
   public StreetviewLinks getLinks() {
     return links;
   }
 
+  /**
+   * Set the links of the current panorama.
+   * 
+   * @param links
+   *          the links
+   */
   public void setLinks(StreetviewLinks links) {
+    setLinks(links, null);
+  }
+
+  /**
+   * Set the links of a panorama.
+   * 
+   * <p>
+   * Browsers don't tag their links, and may still send the previous pano's
+   * links after the pano changes. Untagged links are taken as the previous
+   * pano's if they link to the current pano, which after a move means they
+   * came from the pano moved from, or if they are the first to arrive since
+   * the change and match the previous pano's links, which catches jumps
+   * between unrelated panos. Stale links are cached for the previous pano.
+   * After a jump from a pano whose links never arrived, stale links can't be
+   * told apart and are accepted.
+   * 
+   * @param links
+   *          the links
+   * @param panoid
+   *          the pano the links belong to, or null if unknown
+   * @return true if the links were accepted for the current pano
+   */
+  public boolean setLinks(StreetviewLinks links, String panoid) {
+    String current = pano != null ? pano.getPanoid() : null;
+
+    if (panoid == null) {
+      if (current != null
+          && (linksTo(links, current) || (!linksReceived && sameLinks(links, previousLinks)))) {
+        staleLinks++;
+
+        if (previousPanoid != null) {
+          linkCache.put(previousPanoid, links);
+          graph.setLinks(previousPanoid, links);
+        }
+
+        return false;
+      }
+
+      panoid = current;
+    } else if (!panoid.equals(current)) {
+      linkCache.put(panoid, links);
+      graph.setLinks(panoid, links);
+      staleLinks++;
+      return false;
+    }
+
     this.links = links;
+    linkTable = LinkHeadingTable.fromLinks(links);
     linksDirty = false;
+    linksReceived = true;
+
+    if (panoid != null) {
+      linkCache.put(panoid, links);
+      graph.setLinks(panoid, links);
+    }
+
+    return true;
+  }
+
+  /**
+   * @return true if any of the links lead to the given pano
+   */
+  private static boolean linksTo(StreetviewLinks links, String panoid) {
+    for (StreetviewLink link : links.getLinks()) {
+      if (panoid.equals(link.getPano()))
+        return true;
+    }
+
+    return false;
+  }
+
+  /**
+   * @return true if both sets of links lead to the same panos, in order
+   */
+  private static boolean sameLinks(StreetviewLinks links, StreetviewLinks other) {
+    if (other == null)
+      return false;
+
+    List<StreetviewLink> a = links.getLinks();
+    List<StreetviewLink> b = other.getLinks();
+
+    if (a.size() != b.size())
+      return false;
+
+    for (int i = 0; i < a.size(); i++) {
+      if (!a.get(i).getPano().equals(b.get(i).getPano()))
+        return false;
+    }
+
+    return true;
+  }
+
+  /**
+   * @return number of link updates rejected for not matching the current pano
+   */
+  public long getStaleLinks() {
+    return staleLinks;
+  }
+
+  public StreetviewLinkCache getLinkCache() {
+    return linkCache;
+  }
+
+  public PanoGraph getGraph() {
+    return graph;
   }
 
   public StreetviewModel() {
+    this(new StreetviewLinkCache(DEFAULT_LINK_CACHE_SIZE), new PanoGraph(DEFAULT_GRAPH_MAX_NODES),
+        false);
+  }
+
+  /**
+   * @param linkCache
+   *          cache of links by panoid
+   * @param graph
+   *          graph of all panos seen
+   * @param graphLinks
+   *          true to navigate from panos missing from the link cache using
+   *          their edges in the graph, rather than waiting for the browser
+   */
+  public StreetviewModel(StreetviewLinkCache linkCache, PanoGraph graph, boolean graphLinks) {
+    this.linkCache = linkCache;
+    this.graph = graph;
+    this.graphLinks = graphLinks;
     linksDirty = true;
     pov = new StreetviewPov(0, 0);
   }
@@ -86,23 +285,38 @@ public class StreetviewModel {
   /**
    * Move to a neighboring panorama nearest to the given direction.
    * 
+   * <p>
+   * The lookup uses a heading table built when the links were set, so repeated
+   * move attempts don't allocate.
+   * 
    * @param heading
    *          direction to move
    * @return true if the pano changed
    */
   public boolean moveToward(double heading) {
-    if (linksDirty)
-      return false; // this also prevents reading null links
-
-    StreetviewLink nearest = links.getNearestLink(heading);
+    String nearest = nearestLink(heading);
 
     if (nearest != null) {
-      return setPano(new StreetviewPano(nearest.getPano()));
+      return setPano(new StreetviewPano(nearest));
     }
 
     return false;
   }
 
+  /**
+   * Find the neighboring panorama nearest to a direction, without moving.
+   * 
+   * @param heading
+   *          direction to look
+   * @return the panoid, or null if the current links aren't known
+   */
+  String nearestLink(double heading) {
+    if (linksDirty)
+      return null; // this also prevents reading null links
+
+    return linkTable.nearest(heading);
+  }
+
   /**
    * Move to a neighboring panorama nearest the current heading.
    * 
@@ -0,0 +1,147 @@
+/*
+ * Copyright (C) 2015 End Point Corporation
+ * Copyright (C) 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.endpoint.lg.streetview.master;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The Street View location requested by a director scene.
+ * 
+ * <p>
+ * The location is the first asset of the first window whose activity is
+ * "streetview", in the form <code>panoid[,heading[,pitch]]</code>. It is read
+ * straight from the parsed scene message, and the rest of the scene is never
+ * visited.
+ */
+public class StreetviewScene {
+
+  /**
+   * Activity name of Street View windows in a scene.
+   */
+  public static final String SCENE_ACTIVITY = "streetview";
+
+  /**
+   * Field separator for panoid + pov scene data.
+   */
+  public static final String SCENE_FIELD_SEPARATOR = ",";
+
+  private final String panoid;
+  private final Double heading;
+  private final Double pitch;
+
+  /**
+   * @param panoid
+   *          the panoid
+   * @param heading
+   *          the heading, or null to keep the current heading
+   * @param pitch
+   *          the pitch, or null to keep the current pitch
+   */
+  public StreetviewScene(String panoid, Double heading, Double pitch) {
+    this.panoid = panoid;
+    this.heading = heading;
+    this.pitch = pitch;
+  }
+
+  public String getPanoid() {
+    return panoid;
+  }
+
+  public Double getHeading() {
+    return heading;
+  }
+
+  public Double getPitch() {
+    return pitch;
+  }
+
+  /**
+   * Find the Street View location in a scene message.
+   * 
+   * @param scene
+   *          the parsed scene message
+   * @return the location, or null if the scene has no Street View window
+   * @throws NumberFormatException
+   *           if the heading or pitch isn't a number
+   */
+  public static StreetviewScene fromMessage(Map<String, Object> scene) {
+    String asset = findAsset(scene);
+
+    if (asset == null)
+      return null;
+
+    String[] parts;
+
+    if (asset.contains(SCENE_FIELD_SEPARATOR)) {
+      parts = asset.split(SCENE_FIELD_SEPARATOR, 3);
+    } else {
+      parts = new String[] { asset };
+    }
+
+    Double heading = null, pitch = null;
+
+    if (parts.length > 1) {
+      heading = Double.parseDouble(parts[1]);
+    }
+    if (parts.length > 2) {
+      pitch = Double.parseDouble(parts[2]);
+    }
+
+    return new StreetviewScene(parts[0], heading, pitch);
+  }
+
+  /**
+   * @return the first asset of the first Street View window, or null
+   */
+  private static String findAsset(Map<String, Object> scene) {
+    Object windows = scene.get("windows");
+
+    if (!(windows instanceof List))
+      return null;
+
+    for (Object w : (List<?>) windows) {
+      if (!(w instanceof Map))
+        continue;
+
+      Map<?, ?> window = (Map<?, ?>) w;
+
+      if (!SCENE_ACTIVITY.equals(window.get("activity")))
+        continue;
+
+      Object assets = window.get("assets");
+
+      if (assets instanceof List && !((List<?>) assets).isEmpty()) {
+        Object asset = ((List<?>) assets).get(0);
+
+        if (asset instanceof String)
+          return (String) asset;
+      }
+
+      // only the first Street View window counts
+      return null;
+    }
+
+    return null;
+  }
+
+  @Override
+  public String toString() {
+    return panoid + SCENE_FIELD_SEPARATOR + heading + SCENE_FIELD_SEPARATOR + pitch;
+  }
+}
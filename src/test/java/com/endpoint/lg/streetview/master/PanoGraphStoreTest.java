@@ -0,0 +1,223 @@
+/*
+ * Copyright (C) 2015 End Point Corporation
+ * Copyright (C) 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.endpoint.lg.streetview.master;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import interactivespaces.util.data.json.JsonNavigator;
+
+import com.endpoint.lg.support.domain.streetview.StreetviewLinks;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Tests {@link PanoGraphStore} round trips, recovery from torn and corrupt
+ * files, and compaction.
+ */
+public class PanoGraphStoreTest {
+  private static final int MAX_NODES = 100;
+
+  private File file;
+
+  @Before
+  public void setUp() throws IOException {
+    file = File.createTempFile("graph", ".bin");
+    file.delete();
+  }
+
+  @After
+  public void tearDown() {
+    file.delete();
+    new File(file.getPath() + ".compact").delete();
+  }
+
+  @Test
+  public void storesReplacedLinks() throws IOException {
+    writeReplacedLinks();
+
+    PanoGraphStore store = new PanoGraphStore(file);
+    PanoGraph graph = new PanoGraph(MAX_NODES);
+
+    // a clear and two edges, then a clear and the replacement edge
+    assertEquals(5, store.getRecordCount());
+    assertEquals(3, store.load(graph));
+    assertEquals(1, graph.getNeighbourCount("z"));
+    assertEquals("y", graph.getHeadingTable("z").nearest(0));
+    store.close();
+  }
+
+  @Test
+  public void dropsTornTail() throws IOException {
+    writeEdges(3);
+
+    FileOutputStream out = new FileOutputStream(file, true);
+    out.write(new byte[10]);
+    out.close();
+
+    PanoGraphStore store = new PanoGraphStore(file);
+
+    assertEquals(3, store.getRecordCount());
+    assertEquals(length(3), file.length());
+    assertEquals(3, store.load(new PanoGraph(MAX_NODES)));
+    store.close();
+  }
+
+  @Test
+  public void stopsAtCorruptPanoidLength() throws IOException {
+    writeEdges(3);
+    corrupt(1, 0, 200);
+
+    PanoGraphStore store = new PanoGraphStore(file);
+    PanoGraph graph = new PanoGraph(MAX_NODES);
+
+    assertEquals(1, store.load(graph));
+    assertEquals(2, store.getDiscardedCount());
+    assertEquals(1, store.getRecordCount());
+    assertEquals(length(1), file.length());
+
+    store.append("x", "y", 90);
+    store.close();
+
+    store = new PanoGraphStore(file);
+    graph = new PanoGraph(MAX_NODES);
+    assertEquals(2, store.load(graph));
+    assertEquals("y", graph.getHeadingTable("x").nearest(0));
+    store.close();
+  }
+
+  @Test
+  public void stopsAtNonFiniteHeading() throws IOException {
+    writeEdges(3);
+
+    RandomAccessFile raf = new RandomAccessFile(file, "rw");
+    raf.seek(PanoGraphStore.HEADER_BYTES + 2 * PanoGraphStore.RECORD_BYTES + 2
+        * PanoGraphStore.PANOID_BYTES);
+    raf.writeFloat(Float.NaN);
+    raf.close();
+
+    PanoGraphStore store = new PanoGraphStore(file);
+
+    assertEquals(2, store.load(new PanoGraph(MAX_NODES)));
+    assertEquals(1, store.getDiscardedCount());
+    assertEquals(length(2), file.length());
+    store.close();
+  }
+
+  @Test(expected = IOException.class)
+  public void rejectsOtherFiles() throws IOException {
+    FileOutputStream out = new FileOutputStream(file);
+    out.write(new byte[PanoGraphStore.HEADER_BYTES]);
+    out.close();
+
+    new PanoGraphStore(file);
+  }
+
+  @Test
+  public void compactsToCurrentEdges() throws IOException {
+    writeReplacedLinks();
+
+    assertEquals(1, PanoGraphStore.compact(file, MAX_NODES));
+    assertEquals(length(1), file.length());
+
+    PanoGraphStore store = new PanoGraphStore(file);
+    assertEquals(1, store.getRecordCount());
+    store.append("y", "z", 270);
+    store.close();
+
+    store = new PanoGraphStore(file);
+    PanoGraph graph = new PanoGraph(MAX_NODES);
+    assertEquals(2, store.load(graph));
+    assertEquals("y", graph.getHeadingTable("z").nearest(0));
+    assertEquals("z", graph.getHeadingTable("y").nearest(0));
+    assertFalse(new File(file.getPath() + ".compact").exists());
+    store.close();
+  }
+
+  /**
+   * Store links for a pano, then replace them.
+   */
+  private void writeReplacedLinks() throws IOException {
+    PanoGraphStore store = new PanoGraphStore(file);
+    PanoGraph graph = new PanoGraph(MAX_NODES);
+    graph.setEdgeListener(store);
+
+    graph.setLinks("z", links("b", 0, "c", 180));
+    graph.setLinks("z", links("b", 0, "c", 180)); // unchanged, nothing stored
+    graph.setLinks("z", links("y", 90));
+    store.close();
+  }
+
+  /**
+   * Store a chain of edges, p0 to p1 and so on.
+   */
+  private void writeEdges(int edges) throws IOException {
+    PanoGraphStore store = new PanoGraphStore(file);
+
+    for (int i = 0; i < edges; i++) {
+      store.append("p" + i, "p" + (i + 1), i);
+    }
+
+    store.close();
+  }
+
+  /**
+   * Overwrite one byte of a stored record.
+   */
+  private void corrupt(int record, int offset, int value) throws IOException {
+    RandomAccessFile raf = new RandomAccessFile(file, "rw");
+    raf.seek(PanoGraphStore.HEADER_BYTES + record * PanoGraphStore.RECORD_BYTES + offset);
+    raf.write(value);
+    raf.close();
+  }
+
+  private static long length(int records) {
+    return PanoGraphStore.HEADER_BYTES + records * (long) PanoGraphStore.RECORD_BYTES;
+  }
+
+  /**
+   * @return links to each pano and heading given in turn
+   */
+  private static StreetviewLinks links(Object... panosAndHeadings) {
+    List<Object> list = new ArrayList<Object>();
+
+    for (int i = 0; i < panosAndHeadings.length; i += 2) {
+      Map<String, Object> link = new HashMap<String, Object>();
+      link.put("pano", panosAndHeadings[i]);
+      link.put("heading", ((Number) panosAndHeadings[i + 1]).doubleValue());
+      link.put("description", "");
+      list.add(link);
+    }
+
+    Map<String, Object> message = new HashMap<String, Object>();
+    message.put("links", list);
+
+    return new StreetviewLinks(new JsonNavigator(message));
+  }
+}
@@ -0,0 +1,342 @@
+/*
+ * Copyright (C) 2015 End Point Corporation
+ * Copyright (C) 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.endpoint.lg.streetview.master;
+
+import interactivespaces.configuration.Configuration;
+import interactivespaces.system.InteractiveSpacesEnvironment;
+
+import com.endpoint.lg.support.evdev.InputEventCodes;
+import com.endpoint.lg.support.message.streetview.MessageTypesStreetview;
+
+import org.apache.commons.logging.Log;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Checks that EV_ABS handling latency stays flat while director scenes load,
+ * runnable without a ROS master.
+ *
+ * <p>
+ * The activity itself is run, outside a controller, in both threading modes:
+ * the default, where handlers hold the model lock, and with the event loop.
+ * EV_ABS updates go through its input path at a steady rate, first alone, then
+ * while another thread sends it large scenes, each as soon as the last one was
+ * applied. Latency is the activity's own, from an update's arrival to the POV
+ * broadcast it caused. The check fails if the 99th percentile under load
+ * exceeds {@link #MAX_P99_RATIO} times the unloaded one, plus
+ * {@link #P99_SLACK_NANOS} for scheduling noise.
+ *
+ * <p>
+ * Usage: <code>SceneLoadCheck [events]</code>; exits with status 1 on failure.
+ */
+public class SceneLoadCheck {
+
+  /**
+   * Default EV_ABS updates timed per phase.
+   */
+  public static final int DEFAULT_EVENTS = 20000;
+
+  /**
+   * Most the 99th percentile may grow under scene load, as a multiple.
+   */
+  public static final double MAX_P99_RATIO = 3.0;
+
+  /**
+   * Allowance on top of the ratio, in nanoseconds.
+   */
+  public static final long P99_SLACK_NANOS = TimeUnit.MICROSECONDS.toNanos(500);
+
+  /**
+   * Time between EV_ABS updates, about a SpaceNav's report rate.
+   */
+  private static final long EVENT_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+  /**
+   * Windows in each scene sent during the load phase.
+   */
+  private static final int SCENE_WINDOWS = 200;
+
+  /**
+   * The activity, with the controller's services answered locally: its
+   * configuration comes from a map, its executor is a local pool, it is
+   * always activated, and its output is only counted.
+   */
+  private static class CheckedMaster extends StreetviewMasterActivity {
+    final AtomicLong panos = new AtomicLong();
+
+    private final Configuration configuration;
+    private final InteractiveSpacesEnvironment environment;
+    private final Log log;
+
+    CheckedMaster(boolean eventLoop, ScheduledExecutorService executor) {
+      Map<String, Object> properties = new HashMap<String, Object>();
+      properties.put(CONFIG_EVENT_LOOP_ENABLED, eventLoop);
+
+      log = quietLog();
+      configuration = configuration(properties);
+      environment = environment(executor, log);
+    }
+
+    @Override
+    public Configuration getConfiguration() {
+      return configuration;
+    }
+
+    @Override
+    public InteractiveSpacesEnvironment getSpaceEnvironment() {
+      return environment;
+    }
+
+    @Override
+    public Log getLog() {
+      return log;
+    }
+
+    @Override
+    public boolean isActivated() {
+      return true;
+    }
+
+    @Override
+    public void sendOutputJson(String channel, Map<String, Object> message) {
+      if (MessageTypesStreetview.MESSAGE_TYPE_STREETVIEW_PANO.equals(channel))
+        panos.incrementAndGet();
+    }
+  }
+
+  /**
+   * Latency and scene count of one phase.
+   */
+  private static class Phase {
+    long count;
+    long p50;
+    long p99;
+    long max;
+    long scenes;
+  }
+
+  /**
+   * Run the check in both threading modes and print the results.
+   *
+   * @param args
+   *          optionally the EV_ABS updates timed per phase
+   * @throws InterruptedException
+   *           if interrupted while waiting for a phase to finish
+   */
+  public static void main(String[] args) throws InterruptedException {
+    int events = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_EVENTS;
+    boolean ok = true;
+
+    ok &= check("lock", false, events);
+    ok &= check("loop", true, events);
+
+    if (!ok)
+      System.exit(1);
+  }
+
+  /**
+   * Time one threading mode alone and under scene load.
+   *
+   * @return true if latency stayed within the limit
+   */
+  private static boolean check(String mode, boolean eventLoop, int events)
+      throws InterruptedException {
+    run(eventLoop, events / 4, true); // warmup
+
+    Phase idle = run(eventLoop, events, false);
+    Phase loaded = run(eventLoop, events, true);
+    long limit = (long) (idle.p99 * MAX_P99_RATIO) + P99_SLACK_NANOS;
+
+    print(mode + " idle", idle);
+    print(mode + " scenes", loaded);
+
+    if (loaded.scenes == 0) {
+      System.out.println("FAIL: " + mode + ": no scenes were applied during the load phase");
+      return false;
+    }
+
+    if (loaded.p99 > limit) {
+      System.out.println(String.format("FAIL: %s: p99 under scene load %dus exceeds %dus", mode,
+          TimeUnit.NANOSECONDS.toMicros(loaded.p99), TimeUnit.NANOSECONDS.toMicros(limit)));
+      return false;
+    }
+
+    System.out.println(String.format("OK: %s: p99 under scene load %dus, limit %dus", mode,
+        TimeUnit.NANOSECONDS.toMicros(loaded.p99), TimeUnit.NANOSECONDS.toMicros(limit)));
+    return true;
+  }
+
+  /**
+   * Feed EV_ABS updates through a fresh activity, optionally with scenes
+   * loading alongside.
+   */
+  private static Phase run(boolean eventLoop, int events, boolean withScenes)
+      throws InterruptedException {
+    ScheduledExecutorService executor = Executors.newScheduledThreadPool(2);
+    final CheckedMaster master = new CheckedMaster(eventLoop, executor);
+    final AtomicBoolean done = new AtomicBoolean();
+    Thread director = null;
+
+    master.onActivitySetup();
+    master.onActivityStartup();
+    master.onActivityActivate();
+
+    if (withScenes) {
+      director = new Thread(new Runnable() {
+        public void run() {
+          sendScenes(master, done);
+        }
+      }, "scene-load-check-director");
+      director.setDaemon(true);
+      director.start();
+    }
+
+    Map<String, Object> update = new HashMap<String, Object>();
+    long next = System.nanoTime();
+
+    for (int i = 0; i < events; i++) {
+      // always turning, so every update is answered by a POV broadcast
+      update.put(String.valueOf(InputEventCodes.ABS_RZ), 50 + (int) (300 * Math.sin(i / 40.0)));
+      update.put(String.valueOf(InputEventCodes.ABS_Y), (i * 37) % 21 - 10);
+      update.put(String.valueOf(InputEventCodes.ABS_RX), (i * 53) % 31 - 15);
+
+      master.onNewInputJson("EV_ABS", new HashMap<String, Object>(update));
+
+      next += EVENT_INTERVAL_NANOS;
+      LockSupport.parkNanos(next - System.nanoTime());
+    }
+
+    done.set(true);
+    if (director != null)
+      director.join();
+
+    // let the event loop drain before reading the results
+    Map<String, Object> stats = master.getStatistics();
+    while (eventLoop && ((Number) stats.get("loop.depth")).intValue() > 0) {
+      Thread.sleep(1);
+      stats = master.getStatistics();
+    }
+
+    Phase phase = new Phase();
+    phase.count = ((Number) stats.get("latency.count")).longValue();
+    phase.p50 = ((Number) stats.get("latency.p50.ns")).longValue();
+    phase.p99 = ((Number) stats.get("latency.p99.ns")).longValue();
+    phase.max = ((Number) stats.get("latency.max.ns")).longValue();
+    phase.scenes = master.panos.get();
+
+    master.onActivityShutdown();
+    executor.shutdownNow();
+
+    return phase;
+  }
+
+  /**
+   * Send scenes until done, each once the last one was applied, as a director
+   * would on a busy show.
+   */
+  private static void sendScenes(CheckedMaster master, AtomicBoolean done) {
+    while (!done.get()) {
+      long applied = master.panos.get();
+
+      master.onNewInputJson(StreetviewMasterActivity.MESSAGE_TYPE_SCENE,
+          StreetviewBenchmark.directorScene(SCENE_WINDOWS));
+
+      while (master.panos.get() == applied && !done.get()) {
+        LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(100));
+      }
+    }
+  }
+
+  /**
+   * @return configuration answering from a map, or with the default given
+   */
+  private static Configuration configuration(final Map<String, Object> properties) {
+    return (Configuration) Proxy.newProxyInstance(Configuration.class.getClassLoader(),
+        new Class<?>[] { Configuration.class }, new InvocationHandler() {
+          public Object invoke(Object proxy, Method method, Object[] args) {
+            if (!method.getName().startsWith("getProperty") || args == null)
+              throw new UnsupportedOperationException(method.getName());
+
+            Object value = properties.get(args[0]);
+            if (value == null && args.length > 1)
+              value = args[1];
+
+            return value;
+          }
+        });
+  }
+
+  /**
+   * @return a space environment offering only an executor and a log
+   */
+  private static InteractiveSpacesEnvironment environment(
+      final ScheduledExecutorService executor, final Log log) {
+    return (InteractiveSpacesEnvironment) Proxy.newProxyInstance(
+        InteractiveSpacesEnvironment.class.getClassLoader(),
+        new Class<?>[] { InteractiveSpacesEnvironment.class }, new InvocationHandler() {
+          public Object invoke(Object proxy, Method method, Object[] args) {
+            if (method.getName().equals("getExecutorService"))
+              return executor;
+            if (method.getName().equals("getLog"))
+              return log;
+
+            throw new UnsupportedOperationException(method.getName());
+          }
+        });
+  }
+
+  /**
+   * @return a log that prints only errors, so per-scene logging doesn't
+   *         skew the timing
+   */
+  private static Log quietLog() {
+    return (Log) Proxy.newProxyInstance(Log.class.getClassLoader(), new Class<?>[] { Log.class },
+        new InvocationHandler() {
+          public Object invoke(Object proxy, Method method, Object[] args) {
+            String name = method.getName();
+
+            if (name.startsWith("is"))
+              return name.equals("isErrorEnabled") || name.equals("isFatalEnabled");
+
+            if ((name.equals("error") || name.equals("fatal")) && args != null) {
+              System.err.println(args[0]);
+              if (args.length > 1 && args[1] instanceof Throwable)
+                ((Throwable) args[1]).printStackTrace();
+            }
+
+            return null;
+          }
+        });
+  }
+
+  private static void print(String phase, Phase result) {
+    System.out.println(String.format("%-12s %8d events %6d scenes  p50 %6dus  p99 %6dus  max %6dus",
+        phase, result.count, result.scenes, TimeUnit.NANOSECONDS.toMicros(result.p50),
+        TimeUnit.NANOSECONDS.toMicros(result.p99), TimeUnit.NANOSECONDS.toMicros(result.max)));
+  }
+}
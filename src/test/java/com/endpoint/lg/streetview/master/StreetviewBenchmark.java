@@ -0,0 +1,418 @@
+/*
+ * Copyright (C) 2015 End Point Corporation
+ * Copyright (C) 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.endpoint.lg.streetview.master;
+
+import interactivespaces.util.data.json.JsonMapper;
+import interactivespaces.util.data.json.JsonNavigator;
+
+import com.endpoint.lg.support.domain.streetview.StreetviewLinks;
+import com.endpoint.lg.support.domain.streetview.StreetviewPano;
+import com.endpoint.lg.support.domain.streetview.StreetviewPov;
+import com.endpoint.lg.support.evdev.InputEventCodes;
+import com.endpoint.lg.support.message.Scene;
+import com.endpoint.lg.support.message.Window;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Microbenchmarks of the master's hot paths, runnable without a ROS master.
+ *
+ * <p>
+ * Each target is warmed up, then timed on the calling thread. Throughput is
+ * reported in operations per second, and allocation in bytes per operation
+ * where the JVM can count allocated bytes per thread. Targets ending in
+ * <code>.old</code> time the code a faster path replaced, for comparison.
+ *
+ * <p>
+ * Usage: <code>StreetviewBenchmark [ops]</code>
+ */
+public class StreetviewBenchmark {
+
+  /**
+   * Default operations timed per target.
+   */
+  public static final int DEFAULT_OPS = 1000000;
+
+  /**
+   * Windows in the large director scene; the Street View window is last.
+   */
+  private static final int LARGE_SCENE_WINDOWS = 40;
+
+  /**
+   * A benchmarked operation.
+   */
+  private abstract static class Target {
+    final String name;
+
+    Target(String name) {
+      this.name = name;
+    }
+
+    /**
+     * Run one operation.
+     *
+     * @param i
+     *          the operation number
+     * @return a value depending on the work done, so it isn't optimized away
+     * @throws IOException
+     *           if a baseline that parses JSON fails
+     */
+    abstract long run(int i) throws IOException;
+  }
+
+  /**
+   * Stands in for the ROS publisher: serializes each message the way the
+   * output route would, then drops it.
+   */
+  private static class OutputSink {
+    long messages;
+    long bytes;
+
+    void send(String channel, Map<String, Object> message) {
+      messages++;
+      bytes += JsonMapper.INSTANCE.toString(message).length();
+    }
+  }
+
+  private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+  /**
+   * The per-thread allocation counter some JVMs add to {@link ThreadMXBean},
+   * looked up by name so the benchmark builds on any JVM; null if missing.
+   */
+  private static final Method ALLOCATED_BYTES = findAllocatedBytes();
+
+  private static volatile long blackhole;
+
+  /**
+   * Run every benchmark and print the results.
+   *
+   * @param args
+   *          optionally the operations timed per target
+   * @throws IOException
+   *           if a baseline that parses JSON fails
+   */
+  public static void main(String[] args) throws IOException {
+    int ops = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_OPS;
+
+    List<Target> targets = new ArrayList<Target>();
+    targets.add(absStateTarget());
+    targets.add(sceneTarget("scene.small", 1));
+    targets.add(sceneJsonTarget("scene.small.old", 1));
+    targets.add(sceneTarget("scene.large", LARGE_SCENE_WINDOWS));
+    targets.add(sceneJsonTarget("scene.large.old", LARGE_SCENE_WINDOWS));
+    for (int links : new int[] { 2, 4, 8, 12 }) {
+      targets.add(moveTowardTarget(links));
+    }
+    for (int links : new int[] { 2, 4, 8, 12 }) {
+      targets.add(nearestLinkTarget(links));
+      targets.add(nearestLinkScanTarget(links));
+    }
+    targets.add(povBroadcastTarget());
+
+    for (Target target : targets) {
+      measure(target, ops / 10); // warmup
+      measure(target, ops).print(target.name);
+    }
+  }
+
+  /**
+   * EV_ABS decoding, coalescing and application to the model, over a stream
+   * of SpaceNav-like axis values, through the same navigator the activity
+   * uses. Broadcasting the result is measured by pov.broadcast.
+   */
+  private static Target absStateTarget() {
+    final StreetviewModel model = new StreetviewModel();
+    model.setPov(new StreetviewPov(0, 0));
+
+    final AbsAxisDecoder decoder = new AbsAxisDecoder();
+    final AbsStateCoalescer coalescer = new AbsStateCoalescer();
+    final AbsNavigator navigator = new AbsNavigator(model);
+    navigator.reset(0);
+
+    // a slow twist with some tilt noise, repeated
+    final List<Map<String, Object>> stream = new ArrayList<Map<String, Object>>();
+    for (int i = 0; i < 256; i++) {
+      Map<String, Object> message = new HashMap<String, Object>();
+      message.put(String.valueOf(InputEventCodes.ABS_RZ), (int) (350 * Math.sin(i / 40.0)));
+      message.put(String.valueOf(InputEventCodes.ABS_Y), (i * 37) % 21 - 10);
+      message.put(String.valueOf(InputEventCodes.ABS_RX), (i * 53) % 31 - 15);
+      stream.add(message);
+    }
+
+    return new Target("abs.state") {
+      long run(int i) {
+        decoder.decode(stream.get(i & 255));
+
+        coalescer.add(AbsNavigator.yawOf(decoder.getRz()),
+            AbsNavigator.directionOf(decoder.getY(), decoder.getRx()), System.currentTimeMillis());
+
+        // apply once per few updates, as the event loop would
+        if ((i & 3) == 3) {
+          navigator.turn(coalescer.getYaw());
+          coalescer.applyMovement(navigator);
+          coalescer.clear();
+        }
+
+        return (long) model.getPov().getHeading() + navigator.getMovementCounter();
+      }
+    };
+  }
+
+  /**
+   * Finding the Street View location in a director scene.
+   */
+  private static Target sceneTarget(String name, int windows) {
+    final Map<String, Object> scene = directorScene(windows);
+
+    return new Target(name) {
+      long run(int i) {
+        return StreetviewScene.fromMessage(scene).getPanoid().length();
+      }
+    };
+  }
+
+  /**
+   * Finding the Street View location in a director scene the way the handler
+   * used to: serializing the parsed message back to JSON, parsing that into a
+   * {@link Scene}, then searching its windows.
+   */
+  private static Target sceneJsonTarget(String name, int windows) {
+    final Map<String, Object> scene = directorScene(windows);
+
+    return new Target(name) {
+      long run(int i) throws IOException {
+        Scene parsed = Scene.fromJson(JsonMapper.INSTANCE.toString(scene));
+
+        for (Window w : parsed.windows) {
+          if (w.activity.equals(StreetviewScene.SCENE_ACTIVITY))
+            return w.assets[0].split(StreetviewScene.SCENE_FIELD_SEPARATOR, 3)[0].length();
+        }
+
+        return 0;
+      }
+    };
+  }
+
+  /**
+   * @return a director scene message with the given number of windows, the
+   *         Street View window last
+   */
+  static Map<String, Object> directorScene(int windows) {
+    Map<String, Object> scene = new HashMap<String, Object>();
+    List<Object> list = new ArrayList<Object>();
+
+    for (int i = 0; i < windows; i++) {
+      Map<String, Object> window = new HashMap<String, Object>();
+      List<Object> assets = new ArrayList<Object>();
+
+      if (i == windows - 1) {
+        window.put("activity", StreetviewScene.SCENE_ACTIVITY);
+        assets.add("HnEnxu6UfIsAAAQZLKWcRQ,123.45,-4.5");
+      } else {
+        window.put("activity", "browser");
+        assets.add("http://example.com/" + i);
+      }
+
+      window.put("assets", assets);
+      list.add(window);
+    }
+
+    scene.put("windows", list);
+    return scene;
+  }
+
+  /**
+   * Move attempts from a pano with the given number of links, whose links came
+   * from the graph, as on a cold link cache. The pano stays fixed, so only the
+   * nearest link lookup is timed, not the pano change.
+   */
+  private static Target moveTowardTarget(int links) {
+    final StreetviewModel model =
+        new StreetviewModel(new StreetviewLinkCache(0), new PanoGraph(
+            StreetviewModel.DEFAULT_GRAPH_MAX_NODES), true);
+    PanoGraph graph = model.getGraph();
+
+    // links + 1 panos, each linked to every other one
+    final int panos = links + 1;
+    for (int from = 0; from < panos; from++) {
+      int f = graph.intern("pano" + from);
+
+      for (int to = 0; to < panos; to++) {
+        if (to != from)
+          graph.addEdge(f, graph.intern("pano" + to), ((to - from + panos) % panos) * 360f / panos);
+      }
+    }
+
+    model.setPano(new StreetviewPano("pano0"));
+
+    return new Target("move.toward." + links) {
+      long run(int i) {
+        return model.nearestLink((i * 7) % 360).length();
+      }
+    };
+  }
+
+  /**
+   * Nearest link lookups in the heading table built from a links message.
+   */
+  private static Target nearestLinkTarget(int links) {
+    final LinkHeadingTable table = LinkHeadingTable.fromLinks(linksMessage(links));
+
+    return new Target("links.nearest." + links) {
+      long run(int i) {
+        return table.nearest((i * 7) % 360).length();
+      }
+    };
+  }
+
+  /**
+   * Nearest link lookups the way moveToward() used to, with
+   * {@link StreetviewLinks#getNearestLink(double)}.
+   */
+  private static Target nearestLinkScanTarget(int links) {
+    final StreetviewLinks message = linksMessage(links);
+
+    return new Target("links.nearest." + links + ".old") {
+      long run(int i) {
+        return message.getNearestLink((i * 7) % 360).getPano().length();
+      }
+    };
+  }
+
+  /**
+   * @return a links message with the given number of evenly spread links
+   */
+  private static StreetviewLinks linksMessage(int links) {
+    List<Object> list = new ArrayList<Object>();
+
+    for (int i = 0; i < links; i++) {
+      Map<String, Object> link = new HashMap<String, Object>();
+      link.put("heading", i * 360.0 / links);
+      link.put("pano", "pano" + (i + 1));
+      link.put("description", "");
+      list.add(link);
+    }
+
+    Map<String, Object> message = new HashMap<String, Object>();
+    message.put("links", list);
+
+    return new StreetviewLinks(new JsonNavigator(message));
+  }
+
+  /**
+   * Building, tagging and serializing a POV output message, as
+   * broadcastPov() does on every change, at the default full precision.
+   */
+  private static Target povBroadcastTarget() {
+    final StreetviewModel model = new StreetviewModel();
+    model.setPov(new StreetviewPov(0, 0));
+
+    final OutputSink sink = new OutputSink();
+    final OutputFormatter output = new OutputFormatter("benchmark", -1);
+
+    return new Target("pov.broadcast") {
+      long run(int i) {
+        model.translatePov(0.25, 0);
+
+        sink.send("pov", output.povMessage(model.getPov()));
+        return sink.bytes;
+      }
+    };
+  }
+
+  /**
+   * Results of one timed run.
+   */
+  private static class Result {
+    int ops;
+    long nanos;
+    long bytes;
+
+    void print(String name) {
+      double opsPerSecond = ops * 1e9 / Math.max(1, nanos);
+
+      if (bytes >= 0) {
+        System.out.println(String.format("%-20s %14.0f ops/s %10.1f B/op", name, opsPerSecond,
+            (double) bytes / ops));
+      } else {
+        System.out.println(String.format("%-20s %14.0f ops/s", name, opsPerSecond));
+      }
+    }
+  }
+
+  private static Result measure(Target target, int ops) throws IOException {
+    long sum = 0;
+    long allocated = allocatedBytes();
+    long start = System.nanoTime();
+
+    for (int i = 0; i < ops; i++) {
+      sum += target.run(i);
+    }
+
+    Result result = new Result();
+    result.nanos = System.nanoTime() - start;
+    result.ops = ops;
+    result.bytes = allocated < 0 ? -1 : allocatedBytes() - allocated;
+
+    blackhole += sum;
+    return result;
+  }
+
+  /**
+   * @return bytes allocated so far by this thread, or -1 if the JVM can't tell
+   */
+  private static long allocatedBytes() {
+    if (ALLOCATED_BYTES == null)
+      return -1;
+
+    try {
+      return (Long) ALLOCATED_BYTES.invoke(THREADS, Thread.currentThread().getId());
+    } catch (IllegalAccessException e) {
+      return -1;
+    } catch (InvocationTargetException e) {
+      return -1;
+    }
+  }
+
+  /**
+   * @return the JVM's getThreadAllocatedBytes(long) method, or null
+   */
+  private static Method findAllocatedBytes() {
+    try {
+      Class<?> type = Class.forName("com.sun.management.ThreadMXBean");
+
+      if (type.isInstance(THREADS))
+        return type.getMethod("getThreadAllocatedBytes", long.class);
+    } catch (ClassNotFoundException e) {
+      // not available on this JVM
+    } catch (NoSuchMethodException e) {
+      // not available on this JVM
+    }
+
+    return null;
+  }
+}
@@ -0,0 +1,201 @@
+/*
+ * Copyright (C) 2015 End Point Corporation
+ * Copyright (C) 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.endpoint.lg.streetview.master;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Tests recovery of {@link StreetviewJournal} from torn, invalid and
+ * snapshotted journals.
+ */
+public class StreetviewJournalTest {
+  private File file;
+
+  @Before
+  public void setUp() throws IOException {
+    file = File.createTempFile("journal", ".bin");
+    file.delete();
+  }
+
+  @After
+  public void tearDown() {
+    file.delete();
+    new File(file.getPath() + ".snapshot").delete();
+  }
+
+  @Test
+  public void recoversLastPanoAndPov() throws IOException {
+    StreetviewJournal journal = new StreetviewJournal(file);
+    journal.recordPano("a");
+    journal.recordPov(10, 5);
+    journal.flush();
+    journal.recordPano("b");
+    journal.recordPov(-90, 100);
+    journal.close();
+
+    StreetviewJournal.State state = StreetviewJournal.recover(file);
+    assertEquals("b", state.getPanoid());
+    assertTrue(state.hasPov());
+    assertEquals(270, state.getHeading(), 0);
+    assertEquals(90, state.getPitch(), 0);
+    assertEquals(4, state.getRecordCount());
+    assertEquals(0, state.getDiscardedBytes());
+  }
+
+  @Test
+  public void emptyWithoutFile() throws IOException {
+    StreetviewJournal.State state = StreetviewJournal.recover(file);
+
+    assertNull(state.getPanoid());
+    assertFalse(state.hasPov());
+    assertEquals(0, state.getRecordCount());
+  }
+
+  @Test
+  public void truncatesTornTail() throws IOException {
+    writeJournal("a", 10, 5);
+    long good = file.length();
+
+    // the start of a POV record, cut off mid-timestamp
+    DataOutputStream out = append();
+    out.writeByte(StreetviewJournal.RECORD_POV);
+    out.writeInt(0);
+    out.close();
+
+    StreetviewJournal journal = new StreetviewJournal(file);
+    StreetviewJournal.State state = journal.getRecoveredState();
+
+    assertEquals("a", state.getPanoid());
+    assertEquals(10, state.getHeading(), 0);
+    assertEquals(5, state.getDiscardedBytes());
+    assertEquals(good, file.length());
+
+    journal.recordPano("b");
+    journal.close();
+
+    state = StreetviewJournal.recover(file);
+    assertEquals("b", state.getPanoid());
+    assertEquals(3, state.getRecordCount());
+    assertEquals(0, state.getDiscardedBytes());
+  }
+
+  @Test
+  public void stopsAtGarbageRecord() throws IOException {
+    writeJournal("a", 10, 5);
+    long good = file.length();
+
+    DataOutputStream out = append();
+    out.writeByte(99);
+    out.writeLong(0);
+    out.writeUTF("b");
+
+    // a valid record after the garbage is never read
+    out.writeByte(StreetviewJournal.RECORD_PANO);
+    out.writeLong(0);
+    out.writeUTF("c");
+    out.close();
+
+    StreetviewJournal journal = new StreetviewJournal(file);
+    StreetviewJournal.State state = journal.getRecoveredState();
+
+    assertEquals("a", state.getPanoid());
+    assertEquals(2, state.getRecordCount());
+    assertTrue(state.getDiscardedBytes() > 0);
+    assertEquals(good, file.length());
+
+    journal.recordPov(20, 0);
+    journal.close();
+
+    state = StreetviewJournal.recover(file);
+    assertEquals("a", state.getPanoid());
+    assertEquals(20, state.getHeading(), 0);
+    assertEquals(0, state.getDiscardedBytes());
+  }
+
+  @Test
+  public void stopsAtInvalidPov() throws IOException {
+    writeJournal("a", 10, 5);
+
+    DataOutputStream out = append();
+    out.writeByte(StreetviewJournal.RECORD_POV);
+    out.writeLong(0);
+    out.writeDouble(400);
+    out.writeDouble(0);
+    out.close();
+
+    StreetviewJournal.State state = StreetviewJournal.recover(file);
+
+    assertEquals(10, state.getHeading(), 0);
+    assertEquals(2, state.getRecordCount());
+    assertEquals(25, state.getDiscardedBytes());
+  }
+
+  @Test
+  public void reopensAfterSnapshot() throws IOException {
+    StreetviewJournal journal = new StreetviewJournal(file);
+    journal.recordPano("a");
+
+    for (int i = 0; i < StreetviewJournal.SNAPSHOT_RECORDS; i++) {
+      journal.recordPov(i % 360, 0);
+      journal.flush();
+    }
+
+    assertEquals(1, journal.getSnapshotCount());
+    assertTrue(journal.getRecordCount() < StreetviewJournal.SNAPSHOT_RECORDS);
+
+    journal.recordPov(123, 4);
+    journal.close();
+
+    journal = new StreetviewJournal(file);
+    StreetviewJournal.State state = journal.getRecoveredState();
+
+    assertEquals("a", state.getPanoid());
+    assertEquals(123, state.getHeading(), 0);
+    assertEquals(4, state.getPitch(), 0);
+    assertEquals(0, state.getDiscardedBytes());
+    assertEquals(state.getRecordCount(), journal.getRecordCount());
+    assertFalse(new File(file.getPath() + ".snapshot").exists());
+    journal.close();
+  }
+
+  /**
+   * Write a journal holding one pano and one POV record.
+   */
+  private void writeJournal(String panoid, double heading, double pitch) throws IOException {
+    StreetviewJournal journal = new StreetviewJournal(file);
+    journal.recordPano(panoid);
+    journal.recordPov(heading, pitch);
+    journal.close();
+  }
+
+  private DataOutputStream append() throws IOException {
+    return new DataOutputStream(new FileOutputStream(file, true));
+  }
+}